@@ -0,0 +1,25 @@
+package thread.racecondition;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 처음부터 사용하던 AtomicInteger 구현
+ */
+public class AtomicIntegerCounter implements Counter {
+    private AtomicInteger items = new AtomicInteger(0);
+
+    @Override
+    public void increment() {
+        items.incrementAndGet();
+    }
+
+    @Override
+    public void decrement() {
+        items.decrementAndGet();
+    }
+
+    @Override
+    public long get() {
+        return items.get();
+    }
+}
@@ -0,0 +1,45 @@
+package thread.racecondition;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 스레드마다 자기 칸을 가진 Counter
+ * 칸은 그 스레드만 쓰므로(single writer) CAS 없이 읽고 더한 값을 lazySet으로 내보낸다.
+ * get()은 지금까지 이 Counter를 쓴 모든 스레드의 칸을 더한다. (combining)
+ *
+ * 쓰기는 경합이 전혀 없어서 스레드 수만큼 빨라지지만, 칸을 찾는 ThreadLocal 조회가 매번 들고
+ * 읽기는 스레드 수에 비례하며 끝난 스레드의 칸도 값을 잃지 않도록 계속 남겨 둔다.
+ * 칸마다 StripedCounter와 같은 크기로 padding해서 다른 스레드의 칸과 캐시 라인을 나누지 않는다.
+ */
+public class CombiningCounter implements Counter {
+    private static final int SLOT = StripedCounter.PADDING / 2;
+
+    private final CopyOnWriteArrayList<AtomicLongArray> cells = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<AtomicLongArray> cell = ThreadLocal.withInitial(() -> {
+        AtomicLongArray newCell = new AtomicLongArray(StripedCounter.PADDING);
+        cells.add(newCell);
+        return newCell;
+    });
+
+    @Override
+    public void increment() {
+        AtomicLongArray own = cell.get();
+        own.lazySet(SLOT, own.get(SLOT) + 1);
+    }
+
+    @Override
+    public void decrement() {
+        AtomicLongArray own = cell.get();
+        own.lazySet(SLOT, own.get(SLOT) - 1);
+    }
+
+    @Override
+    public long get() {
+        long sum = 0;
+        for (AtomicLongArray threadCell : cells) {
+            sum += threadCell.get(SLOT);
+        }
+        return sum;
+    }
+}
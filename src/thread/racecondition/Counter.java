@@ -0,0 +1,16 @@
+package thread.racecondition;
+
+/**
+ * InventoryCounter가 개수를 보관하는 방법
+ * 여러 스레드가 동시에 부르므로 구현체는 스레드 안전해야 한다.
+ */
+public interface Counter {
+    void increment();
+
+    void decrement();
+
+    /**
+     * 지금까지 반영된 값. 다른 스레드가 바꾸는 중이면 그 변경이 포함되지 않을 수 있다.
+     */
+    long get();
+}
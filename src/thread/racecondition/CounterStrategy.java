@@ -0,0 +1,29 @@
+package thread.racecondition;
+
+/**
+ * InventoryCounter가 사용할 Counter 구현
+ *
+ * SYNCHRONIZED : 모니터 락. 한 번에 한 스레드만 값을 바꾸고 나머지는 blocking 된다.
+ * ATOMIC_INTEGER : AtomicInteger 하나를 CAS로 바꾼다. 모든 스레드가 같은 캐시 라인을 두고 경합하므로 코어가 늘어도 빨라지지 않는다.
+ * STRIPED : LongAdder처럼 값을 여러 칸(cell)에 나눠 더하고 읽을 때 합친다. CAS에 실패하면 다른 칸으로 옮겨 간다.
+ * COMBINING : 스레드마다 자기만 쓰는 칸을 가진다. 경합이 전혀 없고 CAS도 필요 없지만, 읽을 때 모든 스레드의 칸을 더한다.
+ */
+public enum CounterStrategy {
+    SYNCHRONIZED,
+    ATOMIC_INTEGER,
+    STRIPED,
+    COMBINING;
+
+    public Counter create() {
+        switch (this) {
+            case SYNCHRONIZED:
+                return new SynchronizedCounter();
+            case STRIPED:
+                return new StripedCounter();
+            case COMBINING:
+                return new CombiningCounter();
+            default:
+                return new AtomicIntegerCounter();
+        }
+    }
+}
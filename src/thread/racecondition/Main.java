@@ -1,6 +1,7 @@
 package thread.racecondition;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * race condition 문제
@@ -27,12 +28,31 @@ import java.util.concurrent.atomic.AtomicInteger;
  *    atomic 변수는 blocking을 사용하는 synchronized 키워드와는 달리 non-blocking 하면서 원자성을 보장하여 동기화 문제를 해결한다.
  *    atomic 변수는 CAS(Compare And Swap) 알고리즘을 사용한다.
  *    즉 메인 메모리에 있는 기존의 값과 현재 가지고 있는 기존의 값이 같을 경우에만 연산이 일어난 값으로 변경을 하기 때문이다.
+ *    하지만 모든 스레드가 같은 변수(캐시 라인)에 CAS를 하므로 스레드가 많아지면 실패와 재시도가 늘어난다.
  *
+ * 3. 나눠서 세기
+ *    값을 여러 칸에 나눠 더하고 읽을 때 합치면 쓰기끼리 경합하지 않는다. (LongAdder, 스레드별 칸)
+ *
+ * InventoryCounter가 사용하는 방법은 CounterStrategy로 고른다. -Dcounter.strategy(기본 atomic_integer)
+ * -Dcounter.benchmark=true 면 -Dcounter.strategies=synchronized,atomic_integer,striped,combining 을 차례로
+ * -Dcounter.threads(기본 2)개의 증가 스레드와 같은 수의 감소 스레드로 -Dcounter.iterations(기본 1000만)번씩 실행하고 초당 연산 수를 비교한다.
  */
 public class Main {
+    private static final String STRATEGY = System.getProperty("counter.strategy", "atomic_integer");
+    private static final boolean BENCHMARK = Boolean.getBoolean("counter.benchmark");
+    private static final String STRATEGIES = System.getProperty("counter.strategies", "synchronized,atomic_integer,striped,combining");
+    private static final int NUMBER_OF_THREADS = Integer.getInteger("counter.threads", 2);
+    private static final int ITERATIONS = Integer.getInteger("counter.iterations", 10_000_000);
 
     public static void main(String[] args) throws InterruptedException {
-        InventoryCounter inventoryCounter = new InventoryCounter();
+        if (BENCHMARK) {
+            for (String strategy : STRATEGIES.split(",")) {
+                benchmark(CounterStrategy.valueOf(strategy.trim().toUpperCase()));
+            }
+            return;
+        }
+
+        InventoryCounter inventoryCounter = new InventoryCounter(CounterStrategy.valueOf(STRATEGY.trim().toUpperCase()).create());
         IncrementingThread incrementingThread = new IncrementingThread(inventoryCounter);
         DecrementingThread decrementingThread = new DecrementingThread(inventoryCounter);
 
@@ -45,16 +65,48 @@ public class Main {
         System.out.println("We currently have " + inventoryCounter.getItems());
     }
 
+    /**
+     * 증가 스레드와 감소 스레드를 NUMBER_OF_THREADS개씩 동시에 실행하고, 끝난 뒤 값이 0인지 확인한다.
+     */
+    private static void benchmark(CounterStrategy strategy) throws InterruptedException {
+        InventoryCounter inventoryCounter = new InventoryCounter(strategy.create());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_THREADS; i++) {
+            threads.add(new IncrementingThread(inventoryCounter, ITERATIONS));
+            threads.add(new DecrementingThread(inventoryCounter, ITERATIONS));
+        }
+
+        long startTime = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        long operations = (long) threads.size() * ITERATIONS;
+        System.out.println(String.format("[%s, %d + %d threads] %,.0f ops/sec, %d ms, we currently have %d",
+                strategy.name().toLowerCase(), NUMBER_OF_THREADS, NUMBER_OF_THREADS,
+                operations * 1e9 / elapsedNanos, elapsedNanos / 1_000_000, inventoryCounter.getItems()));
+    }
+
     public static class IncrementingThread extends Thread {
         private InventoryCounter inventoryCounter;
+        private int iterations;
 
         public IncrementingThread(InventoryCounter inventoryCounter) {
+            this(inventoryCounter, 10000);
+        }
+
+        public IncrementingThread(InventoryCounter inventoryCounter, int iterations) {
             this.inventoryCounter = inventoryCounter;
+            this.iterations = iterations;
         }
 
         @Override
         public void run() {
-            for(int i = 0; i < 10000; i++) {
+            for(int i = 0; i < iterations; i++) {
                 inventoryCounter.increment();
             }
         }
@@ -62,33 +114,50 @@ public class Main {
 
     public static class DecrementingThread extends Thread {
         private InventoryCounter inventoryCounter;
+        private int iterations;
 
         public DecrementingThread(InventoryCounter inventoryCounter) {
+            this(inventoryCounter, 10000);
+        }
+
+        public DecrementingThread(InventoryCounter inventoryCounter, int iterations) {
             this.inventoryCounter = inventoryCounter;
+            this.iterations = iterations;
         }
 
         @Override
         public void run() {
-            for(int i = 0; i < 10000; i++) {
+            for(int i = 0; i < iterations; i++) {
                 inventoryCounter.decrement();
             }
         }
     }
 
+    /**
+     * 개수를 세는 방법은 Counter로 바꿀 수 있다. 기본은 AtomicInteger다.
+     */
     private static class InventoryCounter {
 
-        private AtomicInteger items = new AtomicInteger(0);
+        private Counter items;
+
+        public InventoryCounter() {
+            this(new AtomicIntegerCounter());
+        }
+
+        public InventoryCounter(Counter items) {
+            this.items = items;
+        }
 
         public void increment() {
-            items.incrementAndGet();
+            items.increment();
         }
 
         public void decrement() {
-            items.decrementAndGet();
+            items.decrement();
         }
 
         public  int getItems() {
-            return items.get();
+            return (int) items.get();
         }
     }
 }
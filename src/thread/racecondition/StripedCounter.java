@@ -0,0 +1,88 @@
+package thread.racecondition;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LongAdder처럼 여러 칸(cell)에 나눠 세는 Counter
+ * 스레드마다 칸 번호(probe)를 정해서 그 칸만 CAS로 바꾸고, get()은 모든 칸을 더한다.
+ * CAS에 실패했다는 것은 다른 스레드와 같은 칸을 쓰고 있다는 뜻이므로 probe를 바꿔서 다른 칸으로 옮긴다.
+ * 경합이 없으면 칸을 찾는 ThreadLocal 조회도 아까우므로, LongAdder처럼 처음에는 base 하나에만 CAS를 한다.
+ * base의 CAS가 한 번이라도 실패하면 그 뒤로는 모든 스레드가 칸을 사용한다.
+ *
+ * 칸들이 배열에 붙어 있으면 서로 다른 칸이 같은 캐시 라인에 들어가서 결국 같은 라인을 두고 경합한다. (false sharing)
+ * 칸 하나마다 long 16개(128byte, 인접 라인 prefetch까지 고려)를 잡고 그중 하나만 사용한다.
+ */
+public class StripedCounter implements Counter {
+    static final int PADDING = 16;
+
+    private static final ThreadLocal<int[]> PROBE =
+            ThreadLocal.withInitial(() -> new int[]{mix((int) Thread.currentThread().getId())});
+
+    private static final int BASE = PADDING;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+    private volatile boolean contended;
+
+    public StripedCounter() {
+        int numberOfCells = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+        cells = new AtomicLongArray((numberOfCells + 2) * PADDING);
+        mask = numberOfCells - 1;
+    }
+
+    @Override
+    public void increment() {
+        add(1);
+    }
+
+    @Override
+    public void decrement() {
+        add(-1);
+    }
+
+    @Override
+    public long get() {
+        long sum = cells.get(BASE);
+        for (int cell = 0; cell <= mask; cell++) {
+            sum += cells.get(indexOf(cell));
+        }
+        return sum;
+    }
+
+    private void add(long delta) {
+        if (!contended) {
+            long base = cells.get(BASE);
+            if (cells.compareAndSet(BASE, base, base + delta)) {
+                return;
+            }
+            contended = true;
+        }
+
+        int[] probe = PROBE.get();
+        while (true) {
+            int index = indexOf(probe[0] & mask);
+            long value = cells.get(index);
+            if (cells.compareAndSet(index, value, value + delta)) {
+                return;
+            }
+            // xorshift로 다음 칸을 고른다.
+            int next = probe[0];
+            next ^= next << 13;
+            next ^= next >>> 17;
+            next ^= next << 5;
+            probe[0] = next;
+        }
+    }
+
+    /**
+     * 배열 맨 앞 PADDING칸은 비워 두어서 배열 헤더나 앞에 있는 객체와도 캐시 라인을 나누지 않게 한다. 그다음이 base다.
+     */
+    private static int indexOf(int cell) {
+        return (cell + 2) * PADDING;
+    }
+
+    private static int mix(int seed) {
+        int h = seed * 0x9E3779B9;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,23 @@
+package thread.racecondition;
+
+/**
+ * synchronized 메서드로 값을 지키는 Counter
+ */
+public class SynchronizedCounter implements Counter {
+    private long items;
+
+    @Override
+    public synchronized void increment() {
+        items++;
+    }
+
+    @Override
+    public synchronized void decrement() {
+        items--;
+    }
+
+    @Override
+    public synchronized long get() {
+        return items;
+    }
+}
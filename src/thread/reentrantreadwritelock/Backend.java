@@ -0,0 +1,26 @@
+package thread.reentrantreadwritelock;
+
+/**
+ * InventoryDatabase가 사용할 PriceCounts 구현
+ *
+ * TREE_MAP : 가격이 드문드문 있어도 가격 개수만큼만 메모리를 쓰지만, 범위 조회가 범위 안의 가격 수에 비례한다.
+ * FENWICK : 가격 상한만큼 배열을 미리 잡는 대신 범위 조회와 변경이 모두 O(log P)이고 할당이 없다.
+ *           재고 가치, 최저/최고 가격, 백분위 가격도 O(log P)다. 개수와 가치 트리 두 개를 들고 있다.
+ * SEGMENT_TREE : 세그먼트 트리. 개수와 가치 합을 모두 트리에 두어서 모든 집계가 O(log P)다. 배열은 펜윅 트리의 약 4배다.
+ */
+public enum Backend {
+    TREE_MAP,
+    FENWICK,
+    SEGMENT_TREE;
+
+    public PriceCounts create(int highestPrice) {
+        switch (this) {
+            case FENWICK:
+                return new FenwickPriceCounts(highestPrice);
+            case SEGMENT_TREE:
+                return new SegmentTreePriceCounts(highestPrice);
+            default:
+                return new TreeMapPriceCounts();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package thread.reentrantreadwritelock;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 재시작해도 재고가 남는 Inventory
+ * 메모리에 있는 Inventory(delegate)를 감싸고, 모든 변경을 먼저 로그(write-ahead log)에 남긴 뒤 delegate에 반영한다.
+ *
+ * 로그(inventory.wal) : FileChannel로 메모리 매핑한 고정 크기 파일에 (가격, delta) 레코드를 8byte씩 이어 쓴다.
+ *                      매핑된 메모리에 쓰는 것은 시스템 콜이 없으므로, 디스크에 내리는 force()는 commit 스레드가 모아서 한다. (group commit)
+ *                      syncCommit이면 Writer는 자기 레코드가 디스크에 내려갈 때까지 기다리고, 그 사이 다른 Writer의 레코드도 같은 force()로 내려간다.
+ *                      아니면 기다리지 않고, 최대 syncIntervalMillis 동안의 변경을 잃을 수 있다.
+ * 스냅샷(inventory.snapshot) : checkpointIntervalMillis마다, 또는 로그가 가득 차면 가격별 개수 배열을 통째로 쓴다.
+ *                      임시 파일에 쓰고 force() 한 뒤 이름을 바꾸므로 반쯤 쓴 스냅샷이 남지 않는다.
+ *                      바꾼 이름도 디렉터리를 force() 해야 디스크에 남으므로, 그것까지 마친 뒤에 로그를 비운다.
+ *
+ * 레코드에는 번호(LSN)가 있다. 스냅샷은 몇 번 레코드까지 반영했는지를, 로그 헤더는 첫 레코드의 번호를 기록한다.
+ * 복구할 때는 스냅샷을 읽고, 로그에서 그 뒤의 레코드만 delta가 0인 빈 칸을 만날 때까지 다시 반영한다.
+ * 제거는 개수가 0이면 무시되지만, 기록한 순서대로 다시 반영하므로 복구한 결과는 원래와 같다.
+ *
+ * commit 스레드가 force()나 스냅샷에서 예외로 멈추면 그 예외를 보관하고, 기다리던 Writer와 이후의 sync()는
+ * 영원히 기다리지 않고 그 예외를 원인으로 IllegalStateException을 던진다.
+ *
+ * 조회(개수와 집계 모두)는 delegate를 바로 읽으므로 로그와 상관없다. 로그 쓰기와 스냅샷은 Writer끼리만 writeLock으로 줄을 세운다.
+ * 스냅샷은 delegate에서 가격마다 개수를 읽으므로 delegate는 쓰기가 바로 보이는 InventoryDatabase여야 한다.
+ */
+public class DurableInventoryDatabase implements Inventory, AutoCloseable {
+    private static final int LOG_MAGIC = 0x494E5657;
+    private static final int SNAPSHOT_MAGIC = 0x494E5653;
+    private static final int LOG_HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 8;
+
+    private final Inventory delegate;
+    private final int highestPrice;
+    private final Path snapshotFile;
+    private final Path temporarySnapshotFile;
+    private final FileChannel logChannel;
+    private final MappedByteBuffer log;
+    private final int logCapacity;
+    private final boolean syncCommit;
+    private final long syncIntervalMillis;
+    private final long checkpointIntervalMillis;
+    private final Lock writeLock = new ReentrantLock();
+    private final Object commitMonitor = new Object();
+    private final Thread committer;
+
+    // writeLock 아래에서만 바뀐다.
+    private long baseLsn;
+    private int logSize;
+    private long snapshotLsn;
+    private volatile long appendedLsn;
+
+    // commitMonitor 아래에서 바뀐다.
+    private volatile long durableLsn;
+    private boolean commitRequested;
+    private Throwable commitFailure;
+
+    private final long recoveredRecords;
+    private long checkpoints;
+
+    public DurableInventoryDatabase(Inventory delegate, int highestPrice, Path directory, int logCapacity,
+                                    boolean syncCommit, long syncIntervalMillis, long checkpointIntervalMillis) throws IOException {
+        this.delegate = delegate;
+        this.highestPrice = highestPrice;
+        this.syncCommit = syncCommit;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+
+        Files.createDirectories(directory);
+        snapshotFile = directory.resolve("inventory.snapshot");
+        temporarySnapshotFile = directory.resolve("inventory.snapshot.tmp");
+        snapshotLsn = loadSnapshot();
+
+        logChannel = FileChannel.open(directory.resolve("inventory.wal"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // 이전보다 작은 용량으로 열어도 기존 로그 끝의 레코드를 놓치지 않도록 파일 크기보다 작게 매핑하지 않는다.
+        long logRecords = Math.max(logCapacity, (logChannel.size() - LOG_HEADER_BYTES) / RECORD_BYTES);
+        this.logCapacity = (int) logRecords;
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, LOG_HEADER_BYTES + RECORD_BYTES * logRecords);
+        recoveredRecords = replayLog();
+        appendedLsn = baseLsn + logSize;
+        durableLsn = appendedLsn;
+
+        committer = new Thread(this::commitLoop, "inventory-wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        return delegate.getNumberOfItemsInPriceRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public long getTotalValueInPriceRange(int lowerBound, int upperBound) {
+        return delegate.getTotalValueInPriceRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public int getLowestPriceInRange(int lowerBound, int upperBound) {
+        return delegate.getLowestPriceInRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public int getHighestPriceInRange(int lowerBound, int upperBound) {
+        return delegate.getHighestPriceInRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public int getPriceAtPercentile(double quantile) {
+        return delegate.getPriceAtPercentile(quantile);
+    }
+
+    @Override
+    public void addItem(int price) {
+        applyDeltas(new int[]{price}, new int[]{1});
+    }
+
+    @Override
+    public void removeItem(int price) {
+        applyDeltas(new int[]{price}, new int[]{-1});
+    }
+
+    /**
+     * 로그 용량보다 큰 묶음은 잘라서 쓴다. 잘린 조각마다 로그에 쓰고 나서 반영하므로, 중간에 스냅샷을 찍어도 둘이 어긋나지 않는다.
+     */
+    @Override
+    public void applyDeltas(int[] prices, int[] deltas) {
+        for (int i = 0; i < prices.length; i++) {
+            if (prices[i] < 0 || prices[i] >= highestPrice) {
+                throw new IllegalArgumentException("price out of range: " + prices[i]);
+            }
+        }
+
+        long lsn;
+        writeLock.lock();
+        try {
+            for (int from = 0; from < prices.length; from += logCapacity) {
+                int to = Math.min(prices.length, from + logCapacity);
+                if (logSize + (to - from) > logCapacity) {
+                    checkpoint();
+                }
+
+                for (int i = from; i < to; i++) {
+                    // delta가 0인 칸은 로그의 끝을 뜻하므로 기록하지 않는다.
+                    if (deltas[i] != 0) {
+                        int offset = LOG_HEADER_BYTES + RECORD_BYTES * logSize++;
+                        log.putInt(offset, prices[i]);
+                        log.putInt(offset + 4, deltas[i]);
+                    }
+                }
+                appendedLsn = baseLsn + logSize;
+
+                if (from == 0 && to == prices.length) {
+                    delegate.applyDeltas(prices, deltas);
+                } else {
+                    int[] chunkPrices = new int[to - from];
+                    int[] chunkDeltas = new int[to - from];
+                    System.arraycopy(prices, from, chunkPrices, 0, to - from);
+                    System.arraycopy(deltas, from, chunkDeltas, 0, to - from);
+                    delegate.applyDeltas(chunkPrices, chunkDeltas);
+                }
+            }
+            lsn = appendedLsn;
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (syncCommit) {
+            awaitDurable(lsn);
+        }
+    }
+
+    /**
+     * 지금까지 쓴 레코드를 모두 디스크에 내린다.
+     */
+    public void sync() {
+        awaitDurable(appendedLsn);
+    }
+
+    /**
+     * 시작할 때 스냅샷 뒤에서 다시 반영한 로그 레코드 수
+     */
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    public long getCheckpoints() {
+        writeLock.lock();
+        try {
+            return checkpoints;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 스냅샷을 남기고 로그를 닫는다. 다음에 열 때는 다시 반영할 로그가 없다.
+     */
+    @Override
+    public void close() throws IOException {
+        committer.interrupt();
+        writeLock.lock();
+        try {
+            checkpoint();
+            log.force();
+        } finally {
+            writeLock.unlock();
+        }
+        synchronized (commitMonitor) {
+            durableLsn = Math.max(durableLsn, appendedLsn);
+            commitMonitor.notifyAll();
+        }
+        logChannel.close();
+    }
+
+    private void awaitDurable(long lsn) {
+        synchronized (commitMonitor) {
+            if (durableLsn >= lsn) {
+                return;
+            }
+            commitRequested = true;
+            commitMonitor.notifyAll();
+
+            while (durableLsn < lsn) {
+                if (commitFailure != null) {
+                    throw new IllegalStateException("WAL committer stopped", commitFailure);
+                }
+                try {
+                    commitMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 요청이 오거나 syncIntervalMillis가 지나면 그때까지 쓴 레코드를 한 번의 force()로 내린다.
+     * force() 하는 동안 들어온 레코드는 다음 force()가 한꺼번에 처리한다.
+     */
+    private void commitLoop() {
+        try {
+            runCommits();
+        } catch (RuntimeException | Error e) {
+            synchronized (commitMonitor) {
+                commitFailure = e;
+                commitMonitor.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void runCommits() {
+        long nextCheckpoint = System.currentTimeMillis() + checkpointIntervalMillis;
+
+        while (true) {
+            synchronized (commitMonitor) {
+                try {
+                    if (!commitRequested) {
+                        commitMonitor.wait(syncIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                commitRequested = false;
+            }
+
+            long target = appendedLsn;
+            if (target > durableLsn) {
+                log.force();
+                synchronized (commitMonitor) {
+                    durableLsn = Math.max(durableLsn, target);
+                    commitMonitor.notifyAll();
+                }
+            }
+
+            if (System.currentTimeMillis() >= nextCheckpoint) {
+                writeLock.lock();
+                try {
+                    if (appendedLsn > snapshotLsn) {
+                        checkpoint();
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+                nextCheckpoint = System.currentTimeMillis() + checkpointIntervalMillis;
+            }
+        }
+    }
+
+    /**
+     * writeLock을 잡은 채로 부른다. 스냅샷이 디스크에 남은 뒤에 로그를 비운다.
+     * 도중에 멈춰도 복구는 스냅샷 이후의 레코드만 읽으므로 이미 스냅샷에 들어간 레코드를 두 번 반영하지 않는다.
+     */
+    private void checkpoint() {
+        long lsn = baseLsn + logSize;
+        try {
+            writeSnapshot(lsn);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        snapshotLsn = lsn;
+        resetLog(lsn);
+        checkpoints++;
+    }
+
+    /**
+     * 레코드를 뒤에서부터 지우고 헤더의 첫 번호를 나중에 바꾼다.
+     * 도중에 멈춰도 남은 레코드는 항상 앞쪽에 이어져 있고, 그 뒤는 모두 0이라서 로그의 끝을 잘못 읽지 않는다.
+     */
+    private void resetLog(long lsn) {
+        for (int i = logSize - 1; i >= 0; i--) {
+            log.putLong(LOG_HEADER_BYTES + RECORD_BYTES * i, 0L);
+        }
+        log.force();
+        writeLogHeader(lsn);
+        log.force();
+
+        baseLsn = lsn;
+        logSize = 0;
+    }
+
+    private void writeSnapshot(long lsn) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 4 * highestPrice + 8);
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(highestPrice).putLong(lsn);
+        for (int price = 0; price < highestPrice; price++) {
+            buffer.putInt(delegate.getNumberOfItemsInPriceRange(price, price));
+        }
+        buffer.putLong(checksum(buffer.array(), buffer.position()));
+
+        // 스냅샷은 인터럽트된 Writer 스레드에서도 찍을 수 있다. FileChannel은 인터럽트되면 닫혀 버리므로 스트림으로 쓴다.
+        try (FileOutputStream out = new FileOutputStream(temporarySnapshotFile.toFile())) {
+            out.write(buffer.array(), 0, buffer.position());
+            out.getFD().sync();
+        }
+        Files.move(temporarySnapshotFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(snapshotFile.toAbsolutePath().getParent());
+    }
+
+    /**
+     * 이름 바꾸기는 디렉터리 항목을 고치는 것이므로 디렉터리를 force() 해야 전원이 나가도 새 스냅샷이 남는다.
+     * 이것보다 먼저 로그를 비우면, 재시작했을 때 옛 스냅샷과 빈 로그만 남아 그 사이의 변경을 잃는다.
+     *
+     * FileChannel은 인터럽트된 스레드에서 바로 닫혀 버리므로 인터럽트 상태를 잠시 지웠다가 되돌린다.
+     * 디렉터리를 열 수 없는 플랫폼(Windows)에서는 건너뛴다.
+     */
+    private static void syncDirectory(Path directory) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(directory, StandardOpenOption.READ);
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 스냅샷을 delegate에 반영하고 스냅샷의 LSN을 돌려준다. 스냅샷이 없으면 0이다.
+     */
+    private long loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return 0;
+        }
+
+        byte[] bytes = Files.readAllBytes(snapshotFile);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length != 16 + 4 * highestPrice + 8 || buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != highestPrice
+                || buffer.getLong(bytes.length - 8) != checksum(bytes, bytes.length - 8)) {
+            throw new IOException("Corrupted inventory snapshot: " + snapshotFile);
+        }
+        long lsn = buffer.getLong();
+
+        int[] prices = new int[highestPrice];
+        int[] counts = new int[highestPrice];
+        for (int price = 0; price < highestPrice; price++) {
+            prices[price] = price;
+            counts[price] = buffer.getInt();
+        }
+        delegate.applyDeltas(prices, counts);
+        return lsn;
+    }
+
+    /**
+     * 스냅샷 이후의 로그 레코드를 delegate에 다시 반영한다.
+     * 새 로그 파일은 0으로 차 있으므로 헤더를 쓰고 스냅샷의 LSN부터 시작한다.
+     */
+    private long replayLog() throws IOException {
+        if (log.getInt(0) != LOG_MAGIC) {
+            writeLogHeader(snapshotLsn);
+            log.force();
+            baseLsn = snapshotLsn;
+            return 0;
+        }
+        if (log.getInt(4) != highestPrice) {
+            throw new IOException("Inventory log was written for a different price range");
+        }
+
+        baseLsn = log.getLong(8);
+        if (baseLsn > snapshotLsn) {
+            throw new IOException("Inventory log starts after the snapshot, records are missing");
+        }
+
+        while (logSize < logCapacity && log.getInt(LOG_HEADER_BYTES + RECORD_BYTES * logSize + 4) != 0) {
+            logSize++;
+        }
+
+        if (snapshotLsn >= baseLsn + logSize) {
+            // 스냅샷을 쓴 뒤 로그를 다 비우기 전에 멈췄다. 남은 레코드는 모두 스냅샷에 들어 있다.
+            resetLog(snapshotLsn);
+            return 0;
+        }
+
+        int from = (int) (snapshotLsn - baseLsn);
+        int[] prices = new int[logSize - from];
+        int[] deltas = new int[logSize - from];
+        for (int i = from; i < logSize; i++) {
+            prices[i - from] = log.getInt(LOG_HEADER_BYTES + RECORD_BYTES * i);
+            deltas[i - from] = log.getInt(LOG_HEADER_BYTES + RECORD_BYTES * i + 4);
+        }
+        delegate.applyDeltas(prices, deltas);
+        return prices.length;
+    }
+
+    private void writeLogHeader(long lsn) {
+        log.putInt(0, LOG_MAGIC);
+        log.putInt(4, highestPrice);
+        log.putLong(8, lsn);
+    }
+
+    private static long checksum(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+}
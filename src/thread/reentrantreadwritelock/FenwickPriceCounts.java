@@ -0,0 +1,136 @@
+package thread.reentrantreadwritelock;
+
+/**
+ * 펜윅 트리(Fenwick tree, Binary Indexed Tree) 구현
+ * 가격은 0 이상 HIGHEST_PRICE 미만으로 정해져 있으므로 int[] 배열 하나로 모든 가격을 표현할 수 있다.
+ *
+ * tree[i]는 i에서 가장 낮은 1비트 크기만큼의 구간 (i - (i & -i), i] 의 합을 가진다.
+ * 0 ~ price의 합(prefix sum)은 i에서 가장 낮은 1비트를 하나씩 지우며, 개수를 바꿀 때는 하나씩 더하며 따라가므로
+ * 둘 다 O(log P)이다. (P: 가격의 개수)
+ * 범위 합은 prefix sum 두 번의 차이로 구하고, 박싱이나 객체 생성이 전혀 없다.
+ *
+ * 가격 하나의 개수는 트리에서 구하면 O(log P)라서 counts 배열에 따로 들고 있다.
+ * 재고 가치(가격 x 개수)도 같은 모양의 valueTree에 따로 쌓아서, 범위 가치 역시 prefix sum 두 번으로 구한다.
+ */
+public class FenwickPriceCounts implements PriceCounts {
+    private final int[] tree;
+    private final long[] valueTree;
+    private final int[] counts;
+
+    public FenwickPriceCounts(int highestPrice) {
+        this.tree = new int[highestPrice + 1];
+        this.valueTree = new long[highestPrice + 1];
+        this.counts = new int[highestPrice];
+    }
+
+    @Override
+    public int count(int price) {
+        return price >= 0 && price < counts.length ? counts[price] : 0;
+    }
+
+    @Override
+    public int countInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, counts.length - 1);
+        if (from > to) {
+            return 0;
+        }
+        return prefixSum(to) - prefixSum(from - 1);
+    }
+
+    @Override
+    public void add(int price, int delta) {
+        if (price < 0 || price >= counts.length) {
+            throw new IllegalArgumentException("Price out of range: " + price);
+        }
+
+        counts[price] += delta;
+        long value = (long) price * delta;
+        for (int i = price + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+            valueTree[i] += value;
+        }
+    }
+
+    @Override
+    public long valueInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, counts.length - 1);
+        if (from > to) {
+            return 0;
+        }
+        return valuePrefixSum(to) - valuePrefixSum(from - 1);
+    }
+
+    /**
+     * 범위 앞까지의 개수 + 1 번째 물건이 범위 안의 가장 싼 물건이다.
+     */
+    @Override
+    public int lowestPriceInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        if (countInRange(from, upperBound) == 0) {
+            return -1;
+        }
+        return priceAtRank(prefixSum(from - 1) + 1);
+    }
+
+    @Override
+    public int highestPriceInRange(int lowerBound, int upperBound) {
+        int to = Math.min(upperBound, counts.length - 1);
+        if (countInRange(lowerBound, to) == 0) {
+            return -1;
+        }
+        return priceAtRank(prefixSum(to));
+    }
+
+    /**
+     * 큰 구간부터 내려가며 합이 rank보다 작은 구간을 건너뛴다. (binary lifting, O(log P))
+     */
+    @Override
+    public int priceAtRank(long rank) {
+        if (rank < 1) {
+            return -1;
+        }
+
+        int position = 0;
+        long remaining = rank;
+        for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+            if (position + step < tree.length && tree[position + step] < remaining) {
+                position += step;
+                remaining -= tree[position];
+            }
+        }
+        // position + 1 번 원소가 찾는 가격이고, 가격은 원소 번호보다 1 작다.
+        return position < counts.length ? position : -1;
+    }
+
+    /**
+     * 배열 크기는 바뀌지 않고 인덱스는 항상 배열 안에 있으므로, 쓰기 도중에 읽어도 값이 틀릴 뿐 예외는 나지 않는다.
+     */
+    @Override
+    public boolean supportsOptimisticReads() {
+        return true;
+    }
+
+    /**
+     * 0 ~ price 가격의 재고 개수 합. price가 -1이면 0이다.
+     */
+    private int prefixSum(int price) {
+        int sum = 0;
+        for (int i = price + 1; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * 0 ~ price 가격의 재고 가치 합. prefixSum과 같은 길로 valueTree를 더한다.
+     */
+    private long valuePrefixSum(int price) {
+        long sum = 0;
+        for (int i = price + 1; i > 0; i -= i & -i) {
+            sum += valueTree[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,55 @@
+package thread.reentrantreadwritelock;
+
+/**
+ * 가격별 재고를 관리하는 저장소
+ * Main은 이 인터페이스만 사용하므로 구현(단일 락, 가격 구간별 락 등)을 바꿔가며 같은 부하로 비교할 수 있다.
+ */
+public interface Inventory {
+    int getNumberOfItemsInPriceRange(int lowerBound, int upperBound);
+
+    /**
+     * 범위 안 재고의 가격 합 (가격 x 개수)
+     */
+    long getTotalValueInPriceRange(int lowerBound, int upperBound);
+
+    /**
+     * 범위 안에서 재고가 있는 가장 싼 가격. 없으면 -1이다.
+     */
+    int getLowestPriceInRange(int lowerBound, int upperBound);
+
+    /**
+     * 범위 안에서 재고가 있는 가장 비싼 가격. 없으면 -1이다.
+     */
+    int getHighestPriceInRange(int lowerBound, int upperBound);
+
+    /**
+     * 재고를 가격 순서로 세웠을 때 quantile(0 ~ 1) 위치에 있는 물건의 가격. 재고가 없으면 -1이다.
+     */
+    int getPriceAtPercentile(double quantile);
+
+    void addItem(int price);
+
+    void removeItem(int price);
+
+    /**
+     * prices[i] 가격의 재고 개수를 deltas[i]만큼 바꾼다. 음수면 그만큼 빼되 removeItem처럼 0 아래로는 내려가지 않는다.
+     * 기본 구현은 addItem/removeItem을 하나씩 부르고, 구현체는 락을 한 번만 잡고 한꺼번에 반영하도록 고친다.
+     */
+    default void applyDeltas(int[] prices, int[] deltas) {
+        for (int i = 0; i < prices.length; i++) {
+            for (int delta = deltas[i]; delta > 0; delta--) {
+                addItem(prices[i]);
+            }
+            for (int delta = deltas[i]; delta < 0; delta++) {
+                removeItem(prices[i]);
+            }
+        }
+    }
+
+    /**
+     * 낙관적 읽기가 쓰기와 겹쳐서 락을 잡고 다시 읽은 횟수. 낙관적 읽기를 하지 않으면 0이다.
+     */
+    default long getOptimisticReadFailures() {
+        return 0;
+    }
+}
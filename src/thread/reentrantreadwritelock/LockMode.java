@@ -0,0 +1,17 @@
+package thread.reentrantreadwritelock;
+
+/**
+ * InventoryDatabase가 읽기와 쓰기를 동기화하는 방법
+ *
+ * REENTRANT : ReentrantLock 하나로 읽기끼리도 서로 기다린다.
+ * READ_WRITE : ReentrantReadWriteLock. 읽기끼리는 동시에 실행되지만, 읽기 락을 얻고 풀 때마다
+ *              공유하는 읽기 카운터를 바꾸기 때문에 Reader가 많으면 그 캐시 라인을 두고 경합한다.
+ * STAMPED : StampedLock의 낙관적 읽기(optimistic read). 락 없이 읽은 뒤 그 사이에 쓰기가 없었는지 확인(validate)만 하므로
+ *           공유 메모리에 쓰지 않는다. 쓰기가 끼어들었으면 진짜 읽기 락을 얻어서 다시 읽는다.
+ *           쓰기 도중의 자료구조를 읽어도 안전한 PriceCounts(펜윅 트리)에서만 낙관적으로 읽고, 나머지는 읽기 락을 쓴다.
+ */
+public enum LockMode {
+    REENTRANT,
+    READ_WRITE,
+    STAMPED
+}
@@ -0,0 +1,50 @@
+package thread.reentrantreadwritelock;
+
+/**
+ * InventoryDatabase가 가격별 재고 개수를 보관하는 자료구조
+ * 동기화는 InventoryDatabase가 맡기 때문에 구현체는 스레드 안전하지 않아도 된다.
+ */
+public interface PriceCounts {
+    /**
+     * price 가격의 재고 개수
+     */
+    int count(int price);
+
+    /**
+     * lowerBound 이상 upperBound 이하 가격의 재고 개수 합
+     */
+    int countInRange(int lowerBound, int upperBound);
+
+    /**
+     * price 가격의 재고 개수에 delta를 더한다.
+     */
+    void add(int price, int delta);
+
+    /**
+     * lowerBound 이상 upperBound 이하 가격의 재고 가치 합 (가격 x 개수)
+     */
+    long valueInRange(int lowerBound, int upperBound);
+
+    /**
+     * lowerBound 이상 upperBound 이하에서 재고가 있는 가장 싼 가격. 없으면 -1이다.
+     */
+    int lowestPriceInRange(int lowerBound, int upperBound);
+
+    /**
+     * lowerBound 이상 upperBound 이하에서 재고가 있는 가장 비싼 가격. 없으면 -1이다.
+     */
+    int highestPriceInRange(int lowerBound, int upperBound);
+
+    /**
+     * 모든 재고를 가격 순서로 세웠을 때 rank번째(1부터) 물건의 가격. rank가 재고 개수를 넘으면 -1이다.
+     */
+    int priceAtRank(long rank);
+
+    /**
+     * 다른 스레드가 add() 하는 도중에 락 없이 읽어도 예외나 무한 루프 없이 (틀릴 수는 있는) 값을 돌려주는지 여부
+     * StampedLock의 낙관적 읽기는 읽은 값을 validate() 한 뒤에만 사용하지만, 읽는 도중에 멈추거나 터지면 안 된다.
+     */
+    default boolean supportsOptimisticReads() {
+        return false;
+    }
+}
@@ -0,0 +1,148 @@
+package thread.reentrantreadwritelock;
+
+/**
+ * 세그먼트 트리(segment tree) 구현
+ * 가격 개수 P 이상인 가장 작은 2의 거듭제곱 n을 잡고, 1번 노드를 루트로 하는 완전 이진 트리를 배열에 담는다.
+ * 노드 i의 자식은 2i, 2i + 1이고, 가격 p는 n + p번 잎(leaf)이다.
+ *
+ * 노드마다 자기 구간의 재고 개수(counts)와 재고 가치 합(values)을 가진다.
+ * 개수를 바꿀 때는 잎에서 루트까지 log n개의 노드에 delta를 더한다.
+ * 범위 합은 양 끝에서 위로 올라가며 구간에 완전히 들어가는 노드만 더하고,
+ * 최저/최고 가격과 순위(rank)는 개수가 0이 아닌 자식을 따라 루트에서 잎으로 내려가므로 모두 O(log P)다.
+ */
+public class SegmentTreePriceCounts implements PriceCounts {
+    private final int highestPrice;
+    private final int leaves;
+    private final int[] counts;
+    private final long[] values;
+
+    public SegmentTreePriceCounts(int highestPrice) {
+        this.highestPrice = highestPrice;
+        this.leaves = Integer.highestOneBit(Math.max(1, highestPrice - 1)) << 1;
+        this.counts = new int[2 * leaves];
+        this.values = new long[2 * leaves];
+    }
+
+    @Override
+    public int count(int price) {
+        return price >= 0 && price < highestPrice ? counts[leaves + price] : 0;
+    }
+
+    @Override
+    public int countInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, highestPrice - 1);
+
+        int sum = 0;
+        for (int left = from + leaves, right = to + leaves + 1; left < right; left >>= 1, right >>= 1) {
+            if ((left & 1) == 1) {
+                sum += counts[left++];
+            }
+            if ((right & 1) == 1) {
+                sum += counts[--right];
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long valueInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, highestPrice - 1);
+
+        long sum = 0;
+        for (int left = from + leaves, right = to + leaves + 1; left < right; left >>= 1, right >>= 1) {
+            if ((left & 1) == 1) {
+                sum += values[left++];
+            }
+            if ((right & 1) == 1) {
+                sum += values[--right];
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public int lowestPriceInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, highestPrice - 1);
+        return from > to ? -1 : lowest(1, 0, leaves - 1, from, to);
+    }
+
+    @Override
+    public int highestPriceInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, highestPrice - 1);
+        return from > to ? -1 : highest(1, 0, leaves - 1, from, to);
+    }
+
+    @Override
+    public int priceAtRank(long rank) {
+        if (rank < 1 || rank > counts[1]) {
+            return -1;
+        }
+
+        int node = 1;
+        long remaining = rank;
+        while (node < leaves) {
+            node <<= 1;
+            if (counts[node] < remaining) {
+                remaining -= counts[node];
+                node++;
+            }
+        }
+        int price = node - leaves;
+        return price < highestPrice ? price : -1;
+    }
+
+    @Override
+    public void add(int price, int delta) {
+        if (price < 0 || price >= highestPrice) {
+            throw new IllegalArgumentException("Price out of range: " + price);
+        }
+
+        long value = (long) price * delta;
+        for (int node = leaves + price; node > 0; node >>= 1) {
+            counts[node] += delta;
+            values[node] += value;
+        }
+    }
+
+    /**
+     * 배열 크기가 바뀌지 않고 내려가는 깊이도 log n으로 정해져 있으므로, 쓰기 도중에 읽어도 값이 틀릴 뿐 멈추거나 예외가 나지 않는다.
+     */
+    @Override
+    public boolean supportsOptimisticReads() {
+        return true;
+    }
+
+    /**
+     * node가 [nodeFrom, nodeTo] 구간을 맡을 때, [from, to]와 겹치는 곳에서 재고가 있는 가장 왼쪽 잎을 찾는다.
+     * 구간에 완전히 들어가고 개수가 0이 아닌 노드에 닿으면 그 아래에서 반드시 찾으므로 O(log P)다.
+     */
+    private int lowest(int node, int nodeFrom, int nodeTo, int from, int to) {
+        if (nodeTo < from || nodeFrom > to || counts[node] <= 0) {
+            return -1;
+        }
+        if (node >= leaves) {
+            return nodeFrom;
+        }
+
+        int middle = (nodeFrom + nodeTo) >>> 1;
+        int price = lowest(2 * node, nodeFrom, middle, from, to);
+        return price >= 0 ? price : lowest(2 * node + 1, middle + 1, nodeTo, from, to);
+    }
+
+    private int highest(int node, int nodeFrom, int nodeTo, int from, int to) {
+        if (nodeTo < from || nodeFrom > to || counts[node] <= 0) {
+            return -1;
+        }
+        if (node >= leaves) {
+            return nodeFrom;
+        }
+
+        int middle = (nodeFrom + nodeTo) >>> 1;
+        int price = highest(2 * node + 1, middle + 1, nodeTo, from, to);
+        return price >= 0 ? price : highest(2 * node, nodeFrom, middle, from, to);
+    }
+}
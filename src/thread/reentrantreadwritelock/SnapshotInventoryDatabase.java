@@ -0,0 +1,229 @@
+package thread.reentrantreadwritelock;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reader가 락을 전혀 사용하지 않는 InventoryDatabase
+ * 읽기가 쓰기보다 훨씬 많으면, 읽기 락을 얻고 푸는 비용(공유 카운터 쓰기)이 대부분을 차지한다.
+ *
+ * Reader는 volatile 필드로 불변 스냅샷을 읽기만 한다. 공유 메모리에 쓰지도, 기다리지도 않는다.
+ * 스냅샷은 누적 합(prefix sum) 배열이라서 어떤 범위든 두 값의 차이로 O(1)에 구한다.
+ * 재고 가치도 같은 모양의 누적 합을 함께 만들고, 가장 싼/비싼 가격과 백분위는 누적 개수를 이분 탐색해서 O(log P)에 구한다.
+ *
+ * Writer는 addItem/removeItem을 writeLock 아래에서 작업용 counts 배열에만 반영하고,
+ * 다음 중 먼저 오는 때에 새 스냅샷을 만들어 참조를 바꿔 끼운다. (만드는 비용은 O(P))
+ * 1. 바뀐 횟수가 publishEveryChanges에 도달했을 때
+ * 2. publishIntervalMillis마다 도는 publisher 스레드가 반영되지 않은 변경을 발견했을 때
+ *
+ * 따라서 조회 결과는 최대 publishIntervalMillis 또는 publishEveryChanges - 1번의 변경만큼 늦을 수 있다. (staleness)
+ * 방금 쓴 값을 바로 읽어야 하면 flush()로 즉시 발행한다.
+ */
+public class SnapshotInventoryDatabase implements Inventory, AutoCloseable {
+    private final int[] counts;
+    private final int publishEveryChanges;
+    private final Lock writeLock = new ReentrantLock();
+    private final Thread publisher;
+    private int pendingChanges;
+    private volatile Snapshot snapshot;
+
+    public SnapshotInventoryDatabase(int highestPrice, long publishIntervalMillis, int publishEveryChanges) {
+        this.counts = new int[highestPrice];
+        this.publishEveryChanges = publishEveryChanges;
+        this.snapshot = new Snapshot(new int[highestPrice + 1], new long[highestPrice + 1], System.nanoTime());
+
+        publisher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(publishIntervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                flush();
+            }
+        }, "inventory-snapshot-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        int[] prefixSums = snapshot.prefixSums;
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, prefixSums.length - 2);
+        if (from > to) {
+            return 0;
+        }
+        return prefixSums[to + 1] - prefixSums[from];
+    }
+
+    @Override
+    public long getTotalValueInPriceRange(int lowerBound, int upperBound) {
+        long[] prefixValues = snapshot.prefixValues;
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, prefixValues.length - 2);
+        if (from > to) {
+            return 0;
+        }
+        return prefixValues[to + 1] - prefixValues[from];
+    }
+
+    /**
+     * 범위 앞까지의 개수 + 1 번째 물건이 범위 안의 가장 싼 물건이다.
+     * 필드를 한 번만 읽어서, 도중에 새 스냅샷이 발행되어도 한 스냅샷 안에서 답한다.
+     */
+    @Override
+    public int getLowestPriceInRange(int lowerBound, int upperBound) {
+        int[] prefixSums = snapshot.prefixSums;
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, prefixSums.length - 2);
+        if (from > to || prefixSums[to + 1] == prefixSums[from]) {
+            return -1;
+        }
+        return priceAtRank(prefixSums, prefixSums[from] + 1);
+    }
+
+    @Override
+    public int getHighestPriceInRange(int lowerBound, int upperBound) {
+        int[] prefixSums = snapshot.prefixSums;
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, prefixSums.length - 2);
+        if (from > to || prefixSums[to + 1] == prefixSums[from]) {
+            return -1;
+        }
+        return priceAtRank(prefixSums, prefixSums[to + 1]);
+    }
+
+    @Override
+    public int getPriceAtPercentile(double quantile) {
+        int[] prefixSums = snapshot.prefixSums;
+        int total = prefixSums[prefixSums.length - 1];
+        if (total == 0) {
+            return -1;
+        }
+        return priceAtRank(prefixSums, Math.max(1, (long) Math.ceil(quantile * total)));
+    }
+
+    @Override
+    public void addItem(int price) {
+        writeLock.lock();
+        try {
+            counts[price]++;
+            changed();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeItem(int price) {
+        writeLock.lock();
+        try {
+            // 발행되지 않은 변경까지 반영된 counts를 보고 판단한다.
+            if (counts[price] > 0) {
+                counts[price]--;
+                changed();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void applyDeltas(int[] prices, int[] deltas) {
+        writeLock.lock();
+        try {
+            for (int i = 0; i < prices.length; i++) {
+                int price = prices[i];
+                int updated = Math.max(0, counts[price] + deltas[i]);
+                if (updated != counts[price]) {
+                    counts[price] = updated;
+                    pendingChanges++;
+                }
+            }
+            if (pendingChanges >= publishEveryChanges) {
+                publish();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 반영되지 않은 변경이 있으면 지금 바로 새 스냅샷을 발행한다.
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            if (pendingChanges > 0) {
+                publish();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 지금 Reader가 보는 스냅샷이 만들어진 지 얼마나 지났는지(ms)
+     */
+    public long getSnapshotAgeMillis() {
+        return (System.nanoTime() - snapshot.publishedNanos) / 1_000_000;
+    }
+
+    @Override
+    public void close() {
+        publisher.interrupt();
+    }
+
+    private void changed() {
+        if (++pendingChanges >= publishEveryChanges) {
+            publish();
+        }
+    }
+
+    private void publish() {
+        int[] prefixSums = new int[counts.length + 1];
+        long[] prefixValues = new long[counts.length + 1];
+        for (int price = 0; price < counts.length; price++) {
+            prefixSums[price + 1] = prefixSums[price] + counts[price];
+            prefixValues[price + 1] = prefixValues[price] + (long) price * counts[price];
+        }
+
+        // volatile 쓰기 이전의 배열 내용은 이 참조를 읽은 Reader에게 모두 보인다.
+        snapshot = new Snapshot(prefixSums, prefixValues, System.nanoTime());
+        pendingChanges = 0;
+    }
+
+    /**
+     * 누적 개수가 처음으로 rank 이상이 되는 칸을 이분 탐색한다. prefixSums[i]는 i - 1 가격까지의 개수다.
+     */
+    private static int priceAtRank(int[] prefixSums, long rank) {
+        if (rank < 1 || rank > prefixSums[prefixSums.length - 1]) {
+            return -1;
+        }
+
+        int low = 1;
+        int high = prefixSums.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (prefixSums[middle] >= rank) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low - 1;
+    }
+
+    private static class Snapshot {
+        final int[] prefixSums;
+        final long[] prefixValues;
+        final long publishedNanos;
+
+        Snapshot(int[] prefixSums, long[] prefixValues, long publishedNanos) {
+            this.prefixSums = prefixSums;
+            this.prefixValues = prefixValues;
+            this.publishedNanos = publishedNanos;
+        }
+    }
+}
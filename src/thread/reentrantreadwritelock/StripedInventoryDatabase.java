@@ -0,0 +1,181 @@
+package thread.reentrantreadwritelock;
+
+import thread.reentrantreadwritelock.Main.InventoryDatabase;
+
+/**
+ * 가격 구간(stripe)마다 따로 락을 가진 InventoryDatabase
+ * InventoryDatabase 하나는 모든 쓰기가 writeLock 하나에 줄을 서기 때문에, 서로 다른 가격을 바꾸는 Writer끼리도 기다린다.
+ * 가격 범위를 numberOfStripes개의 연속된 구간으로 나누고 구간마다 독립된 InventoryDatabase(락과 자료구조)를 둔다.
+ * 다른 구간의 가격을 바꾸는 쓰기는 서로 기다리지 않으므로 코어 수만큼 나란히 실행된다.
+ *
+ * 범위 조회는 겹치는 구간만 차례로 읽어서 부분 합을 더한다. 구간마다 LockMode대로 락을 잡거나 낙관적으로 읽는다.
+ * 가장 싼/비싼 가격과 백분위도 구간별 답을 이어 붙여서 구한다.
+ * 구간들을 한꺼번에 잠그지 않으므로, 조회 도중에 다른 구간이 바뀌면 합계는 서로 다른 시점의 부분 합을 더한 값이다.
+ * 재고 개수처럼 계속 바뀌는 값에서는 충분하지만, 모든 구간이 같은 시점이어야 한다면 단일 InventoryDatabase를 사용한다.
+ */
+public class StripedInventoryDatabase implements Inventory {
+    private final InventoryDatabase[] stripes;
+    private final int stripeSize;
+
+    public StripedInventoryDatabase(Backend backend, LockMode lockMode, int highestPrice, int numberOfStripes) {
+        this.stripeSize = (highestPrice + numberOfStripes - 1) / numberOfStripes;
+        this.stripes = new InventoryDatabase[(highestPrice + stripeSize - 1) / stripeSize];
+
+        for (int i = 0; i < stripes.length; i++) {
+            int from = i * stripeSize;
+            stripes[i] = new InventoryDatabase(backend, lockMode, Math.min(stripeSize, highestPrice - from));
+        }
+    }
+
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, stripes.length * stripeSize - 1);
+        int sum = 0;
+
+        for (int stripe = from / stripeSize; stripe <= to / stripeSize && from <= to; stripe++) {
+            // 구간 안의 가격으로 바꿔서 묻는다.
+            int offset = stripe * stripeSize;
+            sum += stripes[stripe].getNumberOfItemsInPriceRange(
+                    Math.max(from, offset) - offset, Math.min(to, offset + stripeSize - 1) - offset);
+        }
+
+        return sum;
+    }
+
+    /**
+     * 구간 안의 가치는 구간 안의 가격으로 계산되어 있으므로, 구간 시작 가격 x 개수를 더해서 원래 가격의 가치로 되돌린다.
+     */
+    @Override
+    public long getTotalValueInPriceRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, stripes.length * stripeSize - 1);
+        long sum = 0;
+
+        for (int stripe = from / stripeSize; stripe <= to / stripeSize && from <= to; stripe++) {
+            int offset = stripe * stripeSize;
+            int localFrom = Math.max(from, offset) - offset;
+            int localTo = Math.min(to, offset + stripeSize - 1) - offset;
+            sum += stripes[stripe].getTotalValueInPriceRange(localFrom, localTo)
+                    + (long) offset * stripes[stripe].getNumberOfItemsInPriceRange(localFrom, localTo);
+        }
+
+        return sum;
+    }
+
+    /**
+     * 낮은 구간부터 물어서 처음 재고가 있는 구간의 답을 쓴다.
+     */
+    @Override
+    public int getLowestPriceInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, stripes.length * stripeSize - 1);
+
+        for (int stripe = from / stripeSize; stripe <= to / stripeSize && from <= to; stripe++) {
+            int offset = stripe * stripeSize;
+            int price = stripes[stripe].getLowestPriceInRange(
+                    Math.max(from, offset) - offset, Math.min(to, offset + stripeSize - 1) - offset);
+            if (price >= 0) {
+                return price + offset;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int getHighestPriceInRange(int lowerBound, int upperBound) {
+        int from = Math.max(lowerBound, 0);
+        int to = Math.min(upperBound, stripes.length * stripeSize - 1);
+
+        for (int stripe = to / stripeSize; stripe >= from / stripeSize && from <= to; stripe--) {
+            int offset = stripe * stripeSize;
+            int price = stripes[stripe].getHighestPriceInRange(
+                    Math.max(from, offset) - offset, Math.min(to, offset + stripeSize - 1) - offset);
+            if (price >= 0) {
+                return price + offset;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * 구간별 개수로 전체 순위를 정한 뒤, 그 순위가 들어 있는 구간에 구간 안의 순위로 묻는다.
+     * 개수를 센 뒤 그 구간이 바뀌어서 순위가 구간 개수를 넘으면 -1이다.
+     */
+    @Override
+    public int getPriceAtPercentile(double quantile) {
+        int[] counts = new int[stripes.length];
+        long total = 0;
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            counts[stripe] = stripes[stripe].getNumberOfItemsInPriceRange(0, stripeSize - 1);
+            total += counts[stripe];
+        }
+        if (total == 0) {
+            return -1;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            if (rank <= counts[stripe]) {
+                int price = stripes[stripe].getPriceAtRank(rank);
+                return price < 0 ? -1 : price + stripe * stripeSize;
+            }
+            rank -= counts[stripe];
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void addItem(int price) {
+        stripes[price / stripeSize].addItem(price % stripeSize);
+    }
+
+    @Override
+    public void removeItem(int price) {
+        stripes[price / stripeSize].removeItem(price % stripeSize);
+    }
+
+    /**
+     * 변경을 구간별로 나눈 뒤 구간마다 applyDeltas를 한 번씩 불러서, 구간의 락을 한 번만 잡는다.
+     */
+    @Override
+    public void applyDeltas(int[] prices, int[] deltas) {
+        int[] sizes = new int[stripes.length];
+        for (int price : prices) {
+            sizes[price / stripeSize]++;
+        }
+
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            if (sizes[stripe] == 0) {
+                continue;
+            }
+
+            int[] localPrices = new int[sizes[stripe]];
+            int[] localDeltas = new int[sizes[stripe]];
+            int n = 0;
+            for (int i = 0; i < prices.length && n < localPrices.length; i++) {
+                if (prices[i] / stripeSize == stripe) {
+                    localPrices[n] = prices[i] % stripeSize;
+                    localDeltas[n++] = deltas[i];
+                }
+            }
+            stripes[stripe].applyDeltas(localPrices, localDeltas);
+        }
+    }
+
+    public int getNumberOfStripes() {
+        return stripes.length;
+    }
+
+    @Override
+    public long getOptimisticReadFailures() {
+        long failures = 0;
+        for (InventoryDatabase stripe : stripes) {
+            failures += stripe.getOptimisticReadFailures();
+        }
+        return failures;
+    }
+}
@@ -0,0 +1,93 @@
+package thread.reentrantreadwritelock;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * 처음부터 사용하던 TreeMap 구현
+ * 범위 조회는 subMap의 엔트리를 모두 돌면서 값을 언박싱하고, 개수를 바꿀 때마다 Integer를 박싱한다.
+ */
+public class TreeMapPriceCounts implements PriceCounts {
+    private TreeMap<Integer, Integer> priceToCountMap = new TreeMap<>();
+
+    @Override
+    public int count(int price) {
+        Integer numberOfItemsForPrice = priceToCountMap.get(price);
+        return numberOfItemsForPrice == null ? 0 : numberOfItemsForPrice;
+    }
+
+    @Override
+    public int countInRange(int lowerBound, int upperBound) {
+        Integer fromKey = priceToCountMap.ceilingKey(lowerBound);
+
+        Integer toKey = priceToCountMap.floorKey(upperBound);
+
+        if (fromKey == null || toKey == null || fromKey > toKey) {
+            return 0;
+        }
+
+        NavigableMap<Integer, Integer> rangeOfPrices = priceToCountMap.subMap(fromKey, true, toKey, true);
+
+        int sum = 0;
+        for (int numberOfItemsForPrice : rangeOfPrices.values()) {
+            sum += numberOfItemsForPrice;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public long valueInRange(int lowerBound, int upperBound) {
+        if (lowerBound > upperBound) {
+            return 0;
+        }
+
+        long sum = 0;
+        for (Map.Entry<Integer, Integer> entry : priceToCountMap.subMap(lowerBound, true, upperBound, true).entrySet()) {
+            sum += (long) entry.getKey() * entry.getValue();
+        }
+        return sum;
+    }
+
+    /**
+     * 개수가 0인 가격은 맵에서 지우기 때문에 ceilingKey/floorKey가 곧 재고가 있는 가격이다.
+     */
+    @Override
+    public int lowestPriceInRange(int lowerBound, int upperBound) {
+        Integer price = priceToCountMap.ceilingKey(lowerBound);
+        return price == null || price > upperBound ? -1 : price;
+    }
+
+    @Override
+    public int highestPriceInRange(int lowerBound, int upperBound) {
+        Integer price = priceToCountMap.floorKey(upperBound);
+        return price == null || price < lowerBound ? -1 : price;
+    }
+
+    @Override
+    public int priceAtRank(long rank) {
+        if (rank < 1) {
+            return -1;
+        }
+
+        long seen = 0;
+        for (Map.Entry<Integer, Integer> entry : priceToCountMap.entrySet()) {
+            seen += entry.getValue();
+            if (seen >= rank) {
+                return entry.getKey();
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void add(int price, int delta) {
+        int numberOfItemsForPrice = count(price) + delta;
+        if (numberOfItemsForPrice == 0) {
+            priceToCountMap.remove(price);
+        } else {
+            priceToCountMap.put(price, numberOfItemsForPrice);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package thread.reentrantreadwritelock;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 쓰기를 모아서(write combining) 한꺼번에 반영하는 Inventory
+ * Writer가 여러 개면 변경 하나마다 writeLock을 두고 서로 경합하고, 그때마다 Reader도 멈춘다.
+ *
+ * addItem/removeItem은 변경을 큐에 넣고 바로 돌아온다. 여러 스레드가 넣고 하나가 꺼내는 MPSC 큐다.
+ * 전담 combiner 스레드 하나만 큐에서 최대 maxBatch개를 꺼내서 감싼 Inventory의 applyDeltas로 넘기므로,
+ * 락은 Writer 수와 상관없이 묶음마다 한 번만 잡힌다.
+ * 큐에 넣은 순서대로 반영하기 때문에 같은 가격을 넣었다 빼는 순서도 그대로 지켜진다.
+ *
+ * 큐가 끝없이 길어지지 않도록, 반영되지 않은 변경이 maxBatch x PENDING_BATCHES개를 넘으면 Writer가 양보하며 기다린다.
+ *
+ * 감싼 Inventory가 예외를 던지면(범위를 벗어난 가격 등) combiner는 멈추고 그 예외를 보관한다.
+ * 그 뒤의 addItem/removeItem/flush는 끝없이 기다리지 않고 그 예외를 원인으로 IllegalStateException을 던진다.
+ *
+ * close()는 더 이상 변경을 받지 않고, 그때까지 큐에 들어온 변경을 combiner가 모두 반영하고 끝날 때까지 기다린다.
+ * 닫은 뒤의 addItem/removeItem과 반영되지 않은 변경을 기다리는 flush는 IllegalStateException을 던진다.
+ *
+ * 조회(개수와 집계 모두)는 감싼 Inventory를 바로 읽는다. 아직 큐에 남은 변경은 보이지 않으므로, 방금 쓴 값을 읽어야 하면 flush()를 부른다.
+ */
+public class WriteCombiningInventory implements Inventory, AutoCloseable {
+    private static final int PENDING_BATCHES = 16;
+
+    private final Inventory delegate;
+    private final int maxBatch;
+    private final long maxPending;
+    private final ConcurrentLinkedQueue<Update> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final Thread combiner;
+    private volatile long applied;
+    private volatile long batches;
+    private volatile boolean parked;
+    private volatile boolean closed;
+    private volatile RuntimeException failure;
+
+    public WriteCombiningInventory(Inventory delegate, int maxBatch) {
+        this.delegate = delegate;
+        this.maxBatch = maxBatch;
+        this.maxPending = (long) maxBatch * PENDING_BATCHES;
+
+        combiner = new Thread(this::combine, "inventory-write-combiner");
+        combiner.setDaemon(true);
+        combiner.start();
+    }
+
+    @Override
+    public int getNumberOfItemsInPriceRange(int lowerBound, int upperBound) {
+        return delegate.getNumberOfItemsInPriceRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public long getTotalValueInPriceRange(int lowerBound, int upperBound) {
+        return delegate.getTotalValueInPriceRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public int getLowestPriceInRange(int lowerBound, int upperBound) {
+        return delegate.getLowestPriceInRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public int getHighestPriceInRange(int lowerBound, int upperBound) {
+        return delegate.getHighestPriceInRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public int getPriceAtPercentile(double quantile) {
+        return delegate.getPriceAtPercentile(quantile);
+    }
+
+    @Override
+    public void addItem(int price) {
+        submit(price, 1);
+    }
+
+    @Override
+    public void removeItem(int price) {
+        submit(price, -1);
+    }
+
+    @Override
+    public void applyDeltas(int[] prices, int[] deltas) {
+        for (int i = 0; i < prices.length; i++) {
+            submit(prices[i], deltas[i]);
+        }
+    }
+
+    /**
+     * 이 메서드를 부르기 전에 넣은 변경이 모두 반영될 때까지 기다린다.
+     */
+    public void flush() {
+        long target = submitted.get();
+        while (applied < target) {
+            checkFailure();
+            LockSupport.unpark(combiner);
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 지금까지 applyDeltas를 부른 횟수. 반영한 변경 수를 이 값으로 나누면 평균 묶음 크기다.
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    @Override
+    public long getOptimisticReadFailures() {
+        return delegate.getOptimisticReadFailures();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(combiner);
+        try {
+            combiner.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(int price, int delta) {
+        checkFailure();
+        while (submitted.get() - applied >= maxPending) {
+            checkFailure();
+            LockSupport.unpark(combiner);
+            Thread.yield();
+        }
+
+        // 큐에 넣기 전에 세어야, combiner가 꺼내서 applied에 더한 변경이 항상 submitted에도 들어 있다.
+        // 반대 순서면 flush()가 아직 세지 않은 변경을 빼고 목표를 정해서, 먼저 넣은 변경이 남은 채로 돌아올 수 있다.
+        submitted.incrementAndGet();
+        queue.offer(new Update(price, delta));
+        if (parked) {
+            LockSupport.unpark(combiner);
+        }
+    }
+
+    private void combine() {
+        int[] prices = new int[maxBatch];
+        int[] deltas = new int[maxBatch];
+
+        while (true) {
+            int n = 0;
+            Update update;
+            while (n < maxBatch && (update = queue.poll()) != null) {
+                prices[n] = update.price;
+                deltas[n++] = update.delta;
+            }
+
+            if (n == 0) {
+                if (closed) {
+                    // 큐를 다 비웠으므로 close() 전에 들어온 변경은 모두 반영했다.
+                    return;
+                }
+                // parked를 먼저 켜고 큐를 다시 확인해야, 그 사이에 들어온 변경의 unpark를 놓치지 않는다.
+                parked = true;
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+
+            try {
+                if (n == maxBatch) {
+                    delegate.applyDeltas(prices, deltas);
+                } else {
+                    int[] batchPrices = new int[n];
+                    int[] batchDeltas = new int[n];
+                    System.arraycopy(prices, 0, batchPrices, 0, n);
+                    System.arraycopy(deltas, 0, batchDeltas, 0, n);
+                    delegate.applyDeltas(batchPrices, batchDeltas);
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+                return;
+            }
+            batches++;
+            applied += n;
+        }
+    }
+
+    private void checkFailure() {
+        RuntimeException cause = failure;
+        if (cause != null) {
+            throw new IllegalStateException("Write combiner stopped", cause);
+        }
+        if (closed) {
+            throw new IllegalStateException("Write combiner closed");
+        }
+    }
+
+    private static class Update {
+        final int price;
+        final int delta;
+
+        Update(int price, int delta) {
+            this.price = price;
+            this.delta = delta;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package thread.throughput;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 실행 중에 스스로 크기를 조절하는 스레드 풀
+ * 최적의 스레드 개수는 미리 알 수 없기 때문에, 실제 부하를 보면서 언덕 오르기(hill climbing)로 찾아간다.
+ *
+ * 튜너 스레드가 windowMillis마다 처리한 요청 수와 큐에서 기다린 평균 시간을 잰다.
+ * 0. 큐 대기 시간이 backlogMillis를 넘으면 처리량 비교보다 먼저, 현재 크기의 절반만큼 늘린다.
+ *    갑자기 몰린 요청에 한 구간에 current / 8개씩 늘리면 따라잡기 전에 큐가 수 초씩 밀리기 때문이다.
+ *    큐가 비어 있다가 밀리기 시작하면 방향도 늘리기로 되돌리고, 밀려 있는 동안에는 줄이지 않는다.
+ *    직전에 늘렸는데 처리량이 tolerance보다 많이 줄었으면 더 늘려도 소용없으므로 그 구간은 그대로 둔다.
+ * 1. 처리량이 tolerance보다 많이 늘었으면 방금 움직인 방향(늘리기/줄이기)으로 한 번 더 움직인다.
+ * 2. 처리량이 tolerance보다 많이 줄었으면 방향을 반대로 바꿔서 움직인다.
+ * 3. 처리량이 그대로인데 큐 대기 시간이 거의 없으면 스레드가 남는 것이므로 줄인다.
+ *    처리량이 그대로이고 큐가 조금(backlogMillis 이하) 밀려 있으면 그대로 둔다. 스레드를 늘려도 나아지지 않았다는 뜻이기 때문이다.
+ *
+ * 측정값은 지수 이동 평균(smoothing)으로 흔들림을 줄이고, 크기를 바꾼 직후의 구간은 건너뛰어서
+ * 새 스레드가 자리 잡기 전의 값으로 판단하지 않게 한다. 크기를 바꿀 때마다 이유를 로그로 남긴다.
+ */
+public class AdaptiveThreadPool extends ThreadPoolExecutor {
+    private static final double IDLE_QUEUE_DELAY_MILLIS = 1.0;
+
+    private final int minimumThreads;
+    private final int maximumThreads;
+    private final long windowMillis;
+    private final double smoothing;
+    private final double tolerance;
+    private final double backlogMillis;
+    private final LongAdder completedTasks = new LongAdder();
+    private final LongAdder queueDelayNanos = new LongAdder();
+    private final LongAdder startedTasks = new LongAdder();
+    private final Thread tuner;
+
+    public AdaptiveThreadPool(int initialThreads, int minimumThreads, int maximumThreads,
+                              long windowMillis, double smoothing, double tolerance, double backlogMillis) {
+        super(initialThreads, initialThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.minimumThreads = minimumThreads;
+        this.maximumThreads = maximumThreads;
+        this.windowMillis = windowMillis;
+        this.smoothing = smoothing;
+        this.tolerance = tolerance;
+        this.backlogMillis = backlogMillis;
+
+        tuner = new Thread(this::tune, "adaptive-pool-tuner");
+        tuner.setDaemon(true);
+        tuner.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long submitTime = System.nanoTime();
+        super.execute(() -> {
+            queueDelayNanos.add(System.nanoTime() - submitTime);
+            startedTasks.increment();
+            try {
+                task.run();
+            } finally {
+                completedTasks.increment();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        tuner.interrupt();
+        super.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        tuner.interrupt();
+        return super.shutdownNow();
+    }
+
+    private void tune() {
+        long lastCompleted = 0;
+        long lastDelayNanos = 0;
+        long lastStarted = 0;
+        double smoothedThroughput = -1;
+        double previousThroughput = -1;
+        int direction = 1;
+        boolean skipNextWindow = false;
+        boolean backedUp = false;
+        boolean grewForBacklog = false;
+
+        while (!isShutdown()) {
+            try {
+                Thread.sleep(windowMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long completed = completedTasks.sum();
+            long delayNanos = queueDelayNanos.sum();
+            long started = startedTasks.sum();
+            double throughput = (completed - lastCompleted) * 1000.0 / windowMillis;
+            double averageQueueDelayMillis = started > lastStarted
+                    ? (delayNanos - lastDelayNanos) / 1_000_000.0 / (started - lastStarted) : 0;
+            // 구간 동안 하나도 시작하지 못했는데 큐에 남아 있으면 대기 시간을 잴 수 없을 만큼 밀린 것이다.
+            boolean stalled = started == lastStarted && !getQueue().isEmpty();
+            lastCompleted = completed;
+            lastDelayNanos = delayNanos;
+            lastStarted = started;
+
+            if (throughput == 0 && getQueue().isEmpty()) {
+                // 요청이 없으면 비교할 것이 없다.
+                continue;
+            }
+
+            smoothedThroughput = smoothedThroughput < 0
+                    ? throughput : smoothing * throughput + (1 - smoothing) * smoothedThroughput;
+            if (skipNextWindow) {
+                skipNextWindow = false;
+                continue;
+            }
+
+            boolean wasBackedUp = backedUp;
+            backedUp = stalled || averageQueueDelayMillis > backlogMillis;
+            double change = previousThroughput < 0
+                    ? 0 : (smoothedThroughput - previousThroughput) / Math.max(previousThroughput, 1e-9);
+
+            String reason;
+            int current = getCorePoolSize();
+            int step = Math.max(1, current / 8);
+            if (backedUp) {
+                direction = 1;
+                if (grewForBacklog && change < -tolerance) {
+                    // 늘렸더니 오히려 줄었다. 줄이지는 않고 다음 구간을 본다.
+                    grewForBacklog = false;
+                    previousThroughput = smoothedThroughput;
+                    continue;
+                }
+                step = Math.max(1, current / 2);
+                grewForBacklog = true;
+                reason = String.format(wasBackedUp ? "queue delay %.1f ms still over %.0f ms, grow"
+                        : "queue backed up (%.1f ms over %.0f ms), grow", averageQueueDelayMillis, backlogMillis);
+            } else if (previousThroughput < 0) {
+                grewForBacklog = false;
+                if (averageQueueDelayMillis <= IDLE_QUEUE_DELAY_MILLIS) {
+                    previousThroughput = smoothedThroughput;
+                    continue;
+                }
+                direction = 1;
+                reason = "first measurement with queued requests";
+            } else {
+                grewForBacklog = false;
+                if (change > tolerance) {
+                    reason = String.format("throughput improved %+.1f%%, keep direction", change * 100);
+                } else if (change < -tolerance) {
+                    direction = -direction;
+                    reason = String.format("throughput dropped %+.1f%%, reverse direction", change * 100);
+                } else if (averageQueueDelayMillis <= IDLE_QUEUE_DELAY_MILLIS) {
+                    direction = -1;
+                    reason = String.format("throughput flat %+.1f%% and queue idle, shrink", change * 100);
+                } else {
+                    previousThroughput = smoothedThroughput;
+                    continue;
+                }
+            }
+
+            int target = Math.max(minimumThreads, Math.min(maximumThreads, current + direction * step));
+            previousThroughput = smoothedThroughput;
+            if (target == current) {
+                continue;
+            }
+
+            resize(target);
+            skipNextWindow = true;
+            System.out.println(String.format("Adaptive pool %d -> %d threads (%.1f req/s, queue delay %.2f ms): %s",
+                    current, target, smoothedThroughput, averageQueueDelayMillis, reason));
+        }
+    }
+
+    private void resize(int target) {
+        // 항상 core <= maximum 이 되도록 늘릴 때는 maximum부터, 줄일 때는 core부터 바꾼다.
+        if (target > getMaximumPoolSize()) {
+            setMaximumPoolSize(target);
+            setCorePoolSize(target);
+        } else {
+            setCorePoolSize(target);
+            setMaximumPoolSize(target);
+        }
+    }
+}
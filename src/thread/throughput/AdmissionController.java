@@ -0,0 +1,221 @@
+package thread.throughput;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 요청 수락 제어(admission control)와 부하 차단(load shedding)
+ * Executors.newFixedThreadPool의 큐는 크기 제한이 없어서, 처리량보다 많은 요청이 들어오면
+ * 큐에서 기다리는 시간이 끝없이 늘어나고 결국 메모리가 부족해진다.
+ * 처리할 수 없는 요청은 빨리 거절해서, 받아들인 요청의 지연 시간(p99)을 일정하게 유지한다.
+ *
+ * 모든 정책은 아직 시작하지 않은 요청 수를 queueCapacity로 제한한다.
+ * 큐가 가득 차면 Executor 종류와 상관없이 즉시 503을 돌려준다.
+ *
+ * FAIL_FAST : 큐 크기 제한만 사용한다.
+ * CODEL : CoDel처럼 큐 대기 시간을 본다. interval 동안 가장 짧았던 대기 시간도 target보다 길면
+ *         큐가 한 번도 비지 않은 것(standing queue)이므로 과부하로 판단한다.
+ *         과부하인 동안에는 큐에서 target x 2 이상 기다린 요청을 처리하지 않고 503을 돌려준다.
+ *         잠깐 몰린 요청(burst)은 대기 시간이 곧 줄어들기 때문에 버리지 않는다.
+ * PER_CLIENT : 클라이언트(IP) 하나가 동시에 처리 중인 요청 수를 clientConcurrency로 제한하고 넘으면 429를 돌려준다.
+ *              HttpServer 프론트 엔드에서는 요청을 읽어야 주소를 알 수 있으므로 큐에서 꺼낸 뒤에 확인한다.
+ *
+ * 거절한 작업도 요청을 읽고 응답을 써야 하므로, 호출한 스레드에서 거절 상태 코드를 표시한 채로 바로 실행한다.
+ * 호출한 스레드는 HttpServer의 dispatcher 스레드나 NioWordCountServer의 이벤트 루프라서, 거절된 작업이 오래 걸리면
+ * 그동안 다른 연결의 accept와 읽기가 모두 멈춘다. 그러므로 거절된 작업은 503(또는 429) 응답을 쓰는 일만 해야 한다.
+ * wrap()으로 감싼 HttpHandler나 NioWordCountServer는 rejectionStatus()를 보고 단어를 세지 않고 바로 응답한다.
+ * 이 Executor로 도는 HttpServer의 모든 context는 wrap()으로 감싸야 한다.
+ *
+ * 감싼 Executor가 작업을 받지 않으면(RejectedExecutionException) 큐에 들어가지 않은 것이므로 개수를 되돌리고 503으로 응답한다.
+ */
+public class AdmissionController implements Executor {
+    public enum Policy {
+        NONE,
+        FAIL_FAST,
+        CODEL,
+        PER_CLIENT
+    }
+
+    static final int STATUS_SERVICE_UNAVAILABLE = 503;
+    static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    private static final ThreadLocal<Integer> REJECTION_STATUS = new ThreadLocal<>();
+
+    private final Executor delegate;
+    private final Policy policy;
+    private final int queueCapacity;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final int clientConcurrency;
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, Integer> clients = new ConcurrentHashMap<>();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder shedRequests = new LongAdder();
+    private final LongAdder clientLimitedRequests = new LongAdder();
+
+    private final AtomicLong intervalEnd = new AtomicLong(System.nanoTime());
+    private final LongAccumulator minimumDelayNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private volatile boolean overloaded;
+
+    public AdmissionController(Executor delegate, Policy policy, int queueCapacity,
+                               long targetMillis, long intervalMillis, int clientConcurrency) {
+        this.delegate = delegate;
+        this.policy = policy;
+        this.queueCapacity = queueCapacity;
+        this.targetNanos = targetMillis * 1_000_000L;
+        this.intervalNanos = intervalMillis * 1_000_000L;
+        this.clientConcurrency = clientConcurrency;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (policy == Policy.NONE) {
+            delegate.execute(task);
+            return;
+        }
+
+        if (queuedTasks.incrementAndGet() > queueCapacity) {
+            queuedTasks.decrementAndGet();
+            rejectedRequests.increment();
+            runRejected(task, STATUS_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        long submitTime = System.nanoTime();
+        try {
+            delegate.execute(() -> {
+                queuedTasks.decrementAndGet();
+                if (policy == Policy.CODEL && shouldShed(System.nanoTime() - submitTime)) {
+                    shedRequests.increment();
+                    runRejected(task, STATUS_SERVICE_UNAVAILABLE);
+                    return;
+                }
+                task.run();
+            });
+        } catch (RejectedExecutionException e) {
+            queuedTasks.decrementAndGet();
+            rejectedRequests.increment();
+            runRejected(task, STATUS_SERVICE_UNAVAILABLE);
+        } catch (RuntimeException | Error e) {
+            queuedTasks.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * 지금 실행 중인 작업이 거절된 작업이면 돌려줄 상태 코드, 아니면 0
+     */
+    public static int rejectionStatus() {
+        Integer status = REJECTION_STATUS.get();
+        return status == null ? 0 : status;
+    }
+
+    public boolean limitsClients() {
+        return policy == Policy.PER_CLIENT;
+    }
+
+    /**
+     * 클라이언트의 동시 요청 수를 하나 올린다. 제한을 넘으면 올리지 않고 false를 돌려준다.
+     */
+    public boolean enterClient(InetAddress client) {
+        if (clients.merge(client, 1, Integer::sum) > clientConcurrency) {
+            exitClient(client);
+            clientLimitedRequests.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void exitClient(InetAddress client) {
+        // 0이 되면 엔트리를 지워서 한 번 왔다 간 클라이언트가 맵에 계속 남지 않게 한다.
+        clients.computeIfPresent(client, (address, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * HttpServer 프론트 엔드용. 거절된 요청이나 동시 요청 수를 넘은 클라이언트에게는 handler를 부르지 않고 바로 응답한다.
+     */
+    public HttpHandler wrap(HttpHandler handler) {
+        return exchange -> {
+            int status = rejectionStatus();
+            if (status == 0 && limitsClients()) {
+                InetAddress client = exchange.getRemoteAddress().getAddress();
+                if (enterClient(client)) {
+                    try {
+                        handler.handle(exchange);
+                    } finally {
+                        exitClient(client);
+                    }
+                    return;
+                }
+                status = STATUS_TOO_MANY_REQUESTS;
+            }
+
+            if (status != 0) {
+                reject(exchange, status);
+                return;
+            }
+            handler.handle(exchange);
+        };
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    public long getShedRequests() {
+        return shedRequests.sum();
+    }
+
+    public long getClientLimitedRequests() {
+        return clientLimitedRequests.sum();
+    }
+
+    public int getQueuedTasks() {
+        return queuedTasks.get();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * interval이 끝날 때마다 그 동안의 최소 대기 시간으로 과부하 여부를 다시 정한다.
+     * 구간을 넘기는 일은 compareAndSet에 성공한 스레드 하나만 한다.
+     */
+    private boolean shouldShed(long delayNanos) {
+        minimumDelayNanos.accumulate(delayNanos);
+
+        long now = System.nanoTime();
+        long end = intervalEnd.get();
+        if (now - end >= 0 && intervalEnd.compareAndSet(end, now + intervalNanos)) {
+            overloaded = minimumDelayNanos.getThenReset() > targetNanos;
+        }
+
+        return overloaded && delayNanos > 2 * targetNanos;
+    }
+
+    private static void runRejected(Runnable task, int status) {
+        REJECTION_STATUS.set(status);
+        try {
+            task.run();
+        } finally {
+            REJECTION_STATUS.remove();
+        }
+    }
+
+    private static void reject(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+}
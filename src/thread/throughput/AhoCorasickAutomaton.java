@@ -0,0 +1,199 @@
+package thread.throughput;
+
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick 다중 패턴 검색
+ * 단어 N개를 각각 countWord로 세면 텍스트를 N번 스캔해야 한다.
+ * 모든 단어로 트라이(trie)를 만들고 실패 링크(failure link)를 연결하면 텍스트를 한 번만 읽어서 모든 단어의 개수를 셀 수 있다.
+ *
+ * 스캔하는 동안에는 도착한 노드의 방문 횟수만 올린다.
+ * 스캔이 끝나면 BFS 역순으로 방문 횟수를 실패 링크 방향으로 더해 준다.
+ * 어떤 노드에 도착했다는 것은 그 노드의 실패 링크가 가리키는 모든 접미사 노드에도 도착했다는 뜻이기 때문이다.
+ * 그래서 일치할 때마다 출력 링크를 따라갈 필요 없이 O(텍스트 길이 + 노드 개수)로 겹치는 일치까지 모두 센다.
+ *
+ * 문자 종류가 많아서(char) 노드마다 배열을 두지 않고, (노드, 문자) -> 다음 노드를 long 키 해시 테이블 하나에 담았다.
+ */
+public class AhoCorasickAutomaton {
+    private static final int ROOT = 0;
+
+    private final String[] words;
+    private final int[] terminalNodes;
+    private final int[] failure;
+    private final int[] bfsOrder;
+    private final TransitionTable transitions;
+    private final int numberOfNodes;
+
+    private AhoCorasickAutomaton(String[] words, int[] terminalNodes, int[] failure, int[] bfsOrder,
+                                 TransitionTable transitions, int numberOfNodes) {
+        this.words = words;
+        this.terminalNodes = terminalNodes;
+        this.failure = failure;
+        this.bfsOrder = bfsOrder;
+        this.transitions = transitions;
+        this.numberOfNodes = numberOfNodes;
+    }
+
+    public static AhoCorasickAutomaton build(String[] words) {
+        int maximumNodes = 1;
+        for (String word : words) {
+            maximumNodes += word.length();
+        }
+
+        TransitionTable transitions = new TransitionTable(maximumNodes);
+        int[] terminalNodes = new int[words.length];
+        int numberOfNodes = 1;
+
+        for (int w = 0; w < words.length; w++) {
+            int node = ROOT;
+            String word = words[w];
+            for (int i = 0; i < word.length(); i++) {
+                int next = transitions.get(node, word.charAt(i));
+                if (next < 0) {
+                    next = numberOfNodes++;
+                    transitions.put(node, word.charAt(i), next);
+                }
+                node = next;
+            }
+            terminalNodes[w] = node;
+        }
+
+        // BFS로 실패 링크를 만든다. 부모의 실패 링크를 따라가며 같은 문자로 갈 수 있는 가장 긴 접미사를 찾는다.
+        int[] failure = new int[numberOfNodes];
+        int[] bfsOrder = new int[numberOfNodes];
+        int[] parent = new int[numberOfNodes];
+        char[] incoming = new char[numberOfNodes];
+        transitions.collectChildren(parent, incoming);
+
+        int head = 0;
+        int tail = 0;
+        bfsOrder[tail++] = ROOT;
+        int[][] children = childrenOf(parent, numberOfNodes);
+
+        while (head < tail) {
+            int node = bfsOrder[head++];
+            for (int child : children[node]) {
+                bfsOrder[tail++] = child;
+                if (node == ROOT) {
+                    failure[child] = ROOT;
+                    continue;
+                }
+
+                int fallback = failure[node];
+                int next = transitions.get(fallback, incoming[child]);
+                while (next < 0 && fallback != ROOT) {
+                    fallback = failure[fallback];
+                    next = transitions.get(fallback, incoming[child]);
+                }
+                failure[child] = next >= 0 ? next : ROOT;
+            }
+        }
+
+        return new AhoCorasickAutomaton(words.clone(), terminalNodes, failure, bfsOrder, transitions, numberOfNodes);
+    }
+
+    /**
+     * 단어 순서대로 겹치는 일치까지 센 개수를 돌려준다.
+     * 오토마톤은 만든 뒤에 바뀌지 않으므로 여러 스레드가 동시에 호출해도 된다.
+     */
+    public long[] count(String text) {
+        long[] hits = new long[numberOfNodes];
+        int node = ROOT;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next = transitions.get(node, c);
+            while (next < 0 && node != ROOT) {
+                node = failure[node];
+                next = transitions.get(node, c);
+            }
+            node = next >= 0 ? next : ROOT;
+            hits[node]++;
+        }
+
+        for (int i = numberOfNodes - 1; i > 0; i--) {
+            int current = bfsOrder[i];
+            hits[failure[current]] += hits[current];
+        }
+
+        long[] counts = new long[words.length];
+        for (int w = 0; w < words.length; w++) {
+            // 빈 문자열은 기존 countWord처럼 모든 위치(길이 + 1)에서 일치한다.
+            counts[w] = words[w].isEmpty() ? text.length() + 1 : hits[terminalNodes[w]];
+        }
+        return counts;
+    }
+
+    private static int[][] childrenOf(int[] parent, int numberOfNodes) {
+        int[] numberOfChildren = new int[numberOfNodes];
+        for (int node = 1; node < numberOfNodes; node++) {
+            numberOfChildren[parent[node]]++;
+        }
+
+        int[][] children = new int[numberOfNodes][];
+        for (int node = 0; node < numberOfNodes; node++) {
+            children[node] = new int[numberOfChildren[node]];
+        }
+
+        Arrays.fill(numberOfChildren, 0);
+        for (int node = 1; node < numberOfNodes; node++) {
+            int p = parent[node];
+            children[p][numberOfChildren[p]++] = node;
+        }
+        return children;
+    }
+
+    /**
+     * (노드 << 16 | 문자) 를 키로 하는 open addressing 해시 테이블
+     */
+    private static class TransitionTable {
+        private final long[] keys;
+        private final int[] values;
+        private final int mask;
+
+        TransitionTable(int maximumEntries) {
+            int capacity = Integer.highestOneBit(Math.max(4, maximumEntries * 2) - 1) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(keys, -1L);
+        }
+
+        int get(int node, char c) {
+            long key = (long) node << 16 | c;
+            int slot = slotOf(key);
+            while (keys[slot] != -1L) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(int node, char c, int next) {
+            long key = (long) node << 16 | c;
+            int slot = slotOf(key);
+            while (keys[slot] != -1L) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = next;
+        }
+
+        void collectChildren(int[] parent, char[] incoming) {
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != -1L) {
+                    int child = values[slot];
+                    parent[child] = (int) (keys[slot] >>> 16);
+                    incoming[child] = (char) keys[slot];
+                }
+            }
+        }
+
+        private int slotOf(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & mask;
+        }
+    }
+}
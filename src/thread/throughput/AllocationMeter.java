@@ -0,0 +1,35 @@
+package thread.throughput;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 현재 스레드가 지금까지 힙에 할당한 바이트 수를 읽는다.
+ * HotSpot이 제공하는 com.sun.management.ThreadMXBean의 getThreadAllocatedBytes()를 사용하고,
+ * 작업 전후의 값을 빼면 그 작업이 할당한 양이 된다. 지원하지 않는 JVM에서는 측정을 끈다.
+ */
+public class AllocationMeter {
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = threadMXBean();
+
+    public static boolean isSupported() {
+        return THREAD_MX_BEAN != null;
+    }
+
+    public static long currentThreadAllocatedBytes() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+
+        com.sun.management.ThreadMXBean hotSpotBean = (com.sun.management.ThreadMXBean) bean;
+        if (!hotSpotBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        hotSpotBean.setThreadAllocatedMemoryEnabled(true);
+        return hotSpotBean;
+    }
+}
@@ -0,0 +1,125 @@
+package thread.throughput;
+
+import thread.throughput.ThroughputHttpServer.WordCountHandler;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 서버를 멈추지 않고 코퍼스를 다시 읽는다. (hot reload)
+ * 서버를 다시 띄우면 JIT으로 컴파일된 코드와 캐시가 모두 사라지기 때문에, 실행 중인 WordCountHandler의 스냅샷만 바꾼다.
+ *
+ * 1. WatchService로 파일이 있는 디렉터리를 지켜보다가 파일이 바뀌거나 새로 만들어지거나 지워지면
+ * 2. 이 스레드(백그라운드)에서 새 텍스트를 읽고 인덱스까지 모두 만든 뒤
+ * 3. WordCountHandler.publish()로 참조 하나만 바꿔 끼운다.
+ * 4. 이전 스냅샷을 잡고 있던 요청들이 모두 끝나면 이전 스냅샷을 놓아준다.
+ *
+ * 디렉터리를 지켜보면(샤드 모드) 그 안의 어떤 파일이 바뀌어도 모든 샤드를 다시 읽는다.
+ * 이름이 같은 샤드는 이전 샤드를 이어받으므로 내용이 덧붙기만 한 파일은 인덱스를 이어 만든다.
+ * 지워진 파일은 다시 읽은 디렉터리 목록에 없으므로 그 샤드는 새 스냅샷에서 빠진다.
+ * 파일 하나를 지켜볼 때 그 파일이 지워지거나, 디렉터리가 비면 다시 읽기가 실패하므로 이전 버전을 계속 쓴다.
+ *
+ * 메모리 맵 모드에서는 파일 자체를 매핑하므로, 새 내용은 다른 이름의 파일에 다 쓴 뒤 원래 이름으로 바꿔서 올려야 한다.
+ * (디렉터리 모드에서는 점으로 시작하는 이름에 쓰면 샤드로 읽히지 않는다.) 이전 스냅샷은 이전 파일의 매핑을 그대로 들고 있으므로
+ * 진행 중인 요청은 이전 내용으로 끝난다. 파일을 그 자리에서 다시 쓴 것(같은 inode)을 알아채면 경고를 출력한다.
+ *
+ * 파일을 쓰는 도중에는 변경 이벤트가 여러 번 오기 때문에 SETTLE_MILLIS 동안 이벤트가 더 없을 때 한 번만 읽는다.
+ */
+public class CorpusReloader {
+    private static final long SETTLE_MILLIS = 200;
+
+    private final WordCountHandler handler;
+    private final Path file;
+    private final boolean directory;
+
+    public CorpusReloader(WordCountHandler handler, Path file) {
+        this.handler = handler;
+        this.file = file.toAbsolutePath();
+        this.directory = Files.isDirectory(this.file);
+    }
+
+    public void start() throws IOException {
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        (directory ? file : file.getParent()).register(watchService,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = drainEvents(key);
+
+                    // 파일 쓰기가 끝날 때까지 이어지는 이벤트를 모두 흘려보낸다.
+                    while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        changed |= drainEvents(key);
+                    }
+
+                    if (changed) {
+                        reload();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+            }
+        }, "corpus-reloader");
+
+        watcher.setDaemon(true);
+        watcher.start();
+        System.out.println("Watching " + file + " for corpus changes");
+    }
+
+    /**
+     * 새 버전을 만들어서 바꿔 끼우고, 이전 버전의 요청이 모두 끝날 때까지 기다린다.
+     * 읽기에 실패하면 이전 버전을 그대로 사용한다.
+     */
+    public void reload() throws InterruptedException {
+        CorpusSnapshot current = handler.current();
+        CorpusSnapshot next;
+
+        long startTime = System.currentTimeMillis();
+        try {
+            if (current.shards != null) {
+                next = ThroughputHttpServer.loadShards(file, current);
+            } else if (current.mappedCorpus != null) {
+                next = new CorpusSnapshot(current.version + 1, MappedCorpus.map(file));
+                Object fileKey = current.mappedCorpus.fileKey();
+                if (fileKey != null && fileKey.equals(next.mappedCorpus.fileKey())) {
+                    System.out.println("Warning: " + file + " was rewritten in place, requests on version " + current.version
+                            + " may see the new content. Write a new file and rename it over the corpus instead.");
+                }
+            } else {
+                next = ThroughputHttpServer.buildSnapshot(new String(Files.readAllBytes(file)), current);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Corpus reload failed, keeping version " + current.version + ": " + e);
+            return;
+        }
+        long loadedTime = System.currentTimeMillis();
+
+        CorpusSnapshot previous = handler.publish(next);
+        previous.awaitDrained();
+        long drainedTime = System.currentTimeMillis();
+
+        System.out.println(String.format("Corpus version %d published (built in %d ms), version %d released after %d ms drain",
+                next.version, loadedTime - startTime, previous.version, drainedTime - loadedTime));
+    }
+
+    private boolean drainEvents(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path && (directory || file.getFileName().equals(context))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
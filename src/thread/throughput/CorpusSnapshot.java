@@ -0,0 +1,107 @@
+package thread.throughput;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 한 버전의 코퍼스와 그 코퍼스로 만든 인덱스 묶음
+ * 만든 뒤에는 바뀌지 않는다. 코퍼스를 새로 읽으면 새 CorpusSnapshot을 만들어서 참조 하나만 바꿔 끼운다.
+ * 요청은 시작할 때 하나의 스냅샷을 잡고 끝날 때까지 그것만 보기 때문에, 텍스트와 인덱스의 버전이 섞이지 않는다.
+ *
+ * 디렉터리를 읽으면 파일마다 독립된 스냅샷(샤드)을 만들고, 그것들을 shards로 묶은 스냅샷 하나를 바꿔 끼운다.
+ * 샤드 스냅샷은 각자의 텍스트와 인덱스를 가지고, 묶은 스냅샷은 shards와 shardNames만 가진다.
+ *
+ * inFlight는 이 스냅샷을 보고 있는 요청 수다.
+ * 교체된 스냅샷은 inFlight가 0이 될 때까지 기다린 뒤에 놓아준다.
+ */
+class CorpusSnapshot {
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    final long version;
+    final String text;
+    final MappedCorpus mappedCorpus;
+    final WordFrequencyIndex wordIndex;
+    final SuffixArrayIndex suffixArray;
+    final SwarSubstringScanner scanner;
+    final CorpusSnapshot[] shards;
+    final String[] shardNames;
+    final LongAdder inFlight = new LongAdder();
+
+    CorpusSnapshot(long version, String text, WordFrequencyIndex wordIndex, SuffixArrayIndex suffixArray,
+                   SwarSubstringScanner scanner) {
+        this.version = version;
+        this.text = text;
+        this.mappedCorpus = null;
+        this.wordIndex = wordIndex;
+        this.suffixArray = suffixArray;
+        this.scanner = scanner;
+        this.shards = null;
+        this.shardNames = null;
+    }
+
+    CorpusSnapshot(long version, MappedCorpus mappedCorpus) {
+        this.version = version;
+        this.text = null;
+        this.mappedCorpus = mappedCorpus;
+        this.wordIndex = null;
+        this.suffixArray = null;
+        this.scanner = null;
+        this.shards = null;
+        this.shardNames = null;
+    }
+
+    CorpusSnapshot(long version, CorpusSnapshot[] shards, String[] shardNames) {
+        this.version = version;
+        this.text = null;
+        this.mappedCorpus = null;
+        this.wordIndex = null;
+        this.suffixArray = null;
+        this.scanner = null;
+        this.shards = shards;
+        this.shardNames = shardNames;
+    }
+
+    /**
+     * 이름이 같은 샤드. 없거나 샤드로 나뉜 스냅샷이 아니면 null이다.
+     */
+    CorpusSnapshot shard(String name) {
+        if (shards == null) {
+            return null;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (shardNames[i].equals(name)) {
+                return shards[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 샤드를 포함해서 가장 긴 텍스트의 길이
+     */
+    int maxTextLength() {
+        if (shards == null) {
+            return text == null ? 0 : text.length();
+        }
+        int length = 0;
+        for (CorpusSnapshot shard : shards) {
+            length = Math.max(length, shard.maxTextLength());
+        }
+        return length;
+    }
+
+    /**
+     * 이 스냅샷의 텍스트 뒤에 내용만 덧붙은 텍스트인지 확인한다.
+     */
+    boolean isAppendedBy(String newText) {
+        return text != null && newText.length() > text.length() && newText.startsWith(text);
+    }
+
+    /**
+     * 이미 교체된 스냅샷을 잡고 있는 요청들이 모두 끝날 때까지 기다린다.
+     */
+    void awaitDrained() throws InterruptedException {
+        while (inFlight.sum() > 0) {
+            Thread.sleep(DRAIN_POLL_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package thread.throughput;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HttpServer가 요청을 처리할 때 사용할 Executor 종류
+ *
+ * FIXED : 고정 크기 스레드 풀. 스레드 개수를 직접 정해야 한다.
+ * VIRTUAL : 요청마다 가상 스레드(Java 21+)를 하나씩 만든다. 블로킹이 많아도 스레드 개수를 고민할 필요가 없다.
+ * WORK_STEALING : ForkJoinPool 기반의 작업 훔치기 풀. 스레드마다 큐가 있어서 공유 큐 경합이 적다.
+ * ADAPTIVE : numberOfThreads개로 시작해서 처리량을 보며 크기를 스스로 조절하는 AdaptiveThreadPool.
+ *            -Dthroughput.adaptive.min/max(기본 1/코어 개수 x 4), windowMillis(1000),
+ *            smoothing(0.5), tolerance(0.05)로 범위와 감쇠를 정한다.
+ *            큐 대기 시간이 backlogMillis(20)를 넘으면 처리량과 상관없이 크게 늘린다.
+ */
+public enum ExecutorMode {
+    FIXED,
+    VIRTUAL,
+    WORK_STEALING,
+    ADAPTIVE;
+
+    private static final int ADAPTIVE_MINIMUM = Integer.getInteger("throughput.adaptive.min", 1);
+    private static final int ADAPTIVE_MAXIMUM = Integer.getInteger("throughput.adaptive.max", Runtime.getRuntime().availableProcessors() * 4);
+    private static final long ADAPTIVE_WINDOW_MILLIS = Long.getLong("throughput.adaptive.windowMillis", 1000L);
+    private static final double ADAPTIVE_SMOOTHING = Double.parseDouble(System.getProperty("throughput.adaptive.smoothing", "0.5"));
+    private static final double ADAPTIVE_TOLERANCE = Double.parseDouble(System.getProperty("throughput.adaptive.tolerance", "0.05"));
+    private static final double ADAPTIVE_BACKLOG_MILLIS = Double.parseDouble(System.getProperty("throughput.adaptive.backlogMillis", "20"));
+
+    public ExecutorService create(int numberOfThreads) {
+        switch (this) {
+            case VIRTUAL:
+                return newVirtualThreadPerTaskExecutor();
+            case WORK_STEALING:
+                return Executors.newWorkStealingPool(numberOfThreads);
+            case ADAPTIVE:
+                return new AdaptiveThreadPool(
+                        Math.max(ADAPTIVE_MINIMUM, Math.min(ADAPTIVE_MAXIMUM, numberOfThreads)),
+                        ADAPTIVE_MINIMUM, ADAPTIVE_MAXIMUM,
+                        ADAPTIVE_WINDOW_MILLIS, ADAPTIVE_SMOOTHING, ADAPTIVE_TOLERANCE, ADAPTIVE_BACKLOG_MILLIS);
+            default:
+                return Executors.newFixedThreadPool(numberOfThreads);
+        }
+    }
+
+    /**
+     * 프로젝트의 언어 레벨(Java 8)에서는 가상 스레드 API를 직접 호출할 수 없어서 리플렉션으로 찾는다.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later", e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package thread.throughput;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 어떤 Executor로 실행하든 같은 기준으로 처리량과 지연 시간을 측정하기 위한 래퍼
+ * 작업을 제출한 시점부터 작업이 끝난 시점까지를 지연 시간으로 기록하므로 큐에서 기다린 시간도 포함된다.
+ *
+ * 여러 워커 스레드가 동시에 카운터를 올리기 때문에 AtomicLong 하나에 몰리지 않도록 LongAdder를 사용한다.
+ *
+ * /metrics를 위해 큐에서 기다린 시간(제출 ~ 시작)과 전체 응답 시간(제출 ~ 끝)을 LatencyHistogram에도 기록하고,
+ * 아직 끝나지 않은 작업 수(제출 - 완료)로 Executor 종류와 상관없이 포화 정도를 볼 수 있게 한다.
+ *
+ * HttpServer는 어떤 경로의 요청인지 모르는 Runnable을 넘기고, 클라이언트가 연결을 닫은 것을 확인하는 데에도 작업을 하나 더 쓴다.
+ * 그래서 요청을 처리한 작업만 실행 중에 countCurrentTask()로 표시하고, 표시한 작업만 측정한다.
+ * /metrics, 연결 종료 확인, CoDel로 버린 요청은 표시하지 않으므로 처리량에도 지연 시간에도 들어가지 않는다.
+ * 큐 대기 시간도 작업이 끝난 뒤에 함께 기록해서 표시하지 않은 작업은 어떤 값에도 들어가지 않는다.
+ */
+public class InstrumentedExecutor implements Executor {
+    private static final ThreadLocal<Boolean> COUNTED = new ThreadLocal<>();
+
+    private final Executor delegate;
+    private final LongAdder completedTasks = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder submittedTasks = new LongAdder();
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram responseTime = new LatencyHistogram();
+
+    public InstrumentedExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long submitTime = System.nanoTime();
+        submittedTasks.increment();
+        delegate.execute(() -> {
+            long startTime = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                if (COUNTED.get() == null) {
+                    submittedTasks.decrement();
+                } else {
+                    COUNTED.remove();
+                    long latency = System.nanoTime() - submitTime;
+                    queueTime.record(startTime - submitTime);
+                    completedTasks.increment();
+                    totalLatencyNanos.add(latency);
+                    maxLatencyNanos.accumulate(latency);
+                    responseTime.record(latency);
+                }
+            }
+        });
+    }
+
+    /**
+     * 지금 이 스레드에서 실행 중인 작업을 요청으로 센다. 요청을 처리하는 쪽(WordCountHandler, NioWordCountServer의 워커)이 부른다.
+     */
+    public static void countCurrentTask() {
+        COUNTED.set(Boolean.TRUE);
+    }
+
+    public Executor getDelegate() {
+        return delegate;
+    }
+
+    public long getInFlightTasks() {
+        // 완료 수를 먼저 읽어야 두 합계 사이에 끝난 작업 때문에 음수가 되지 않는다.
+        long completed = completedTasks.sum();
+        return Math.max(0, submittedTasks.sum() - completed);
+    }
+
+    public LatencyHistogram getQueueTime() {
+        return queueTime;
+    }
+
+    public LatencyHistogram getResponseTime() {
+        return responseTime;
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.sum();
+    }
+
+    public long getTotalLatencyNanos() {
+        return totalLatencyNanos.sum();
+    }
+
+    /**
+     * 마지막으로 호출한 이후의 최대 지연 시간을 돌려주고 초기화한다.
+     */
+    public long getAndResetMaxLatencyNanos() {
+        return maxLatencyNanos.getThenReset();
+    }
+}
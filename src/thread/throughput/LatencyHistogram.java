@@ -0,0 +1,113 @@
+package thread.throughput;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 락 없이 기록하는 지연 시간 히스토그램
+ * 값을 정렬해서 백분위수를 구하려면 모든 값을 보관해야 하므로, 로그 스케일 버킷에 개수만 센다.
+ * 2의 거듭제곱 구간 하나를 16개의 하위 버킷으로 나누기 때문에 오차는 약 6% 이내다. (HdrHistogram과 같은 방식)
+ *
+ * 모든 스레드가 배열 하나를 같이 올리면 같은 캐시 라인을 두고 경합한다.
+ * 스레드 id로 고른 스트라이프(stripe)마다 따로 기록하고, 읽을 때 모든 스트라이프를 합친다.
+ * 가상 스레드처럼 스레드가 아주 많아져도 스트라이프 개수는 코어 개수에 맞춰 고정된다.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+    private static final int NUMBER_OF_BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    public LatencyHistogram() {
+        int numberOfStripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+        stripes = new AtomicLongArray[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; i++) {
+            stripes[i] = new AtomicLongArray(NUMBER_OF_BUCKETS);
+        }
+        mask = numberOfStripes - 1;
+    }
+
+    public void record(long nanos) {
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        stripe.incrementAndGet(bucketOf(Math.max(0, nanos)));
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[NUMBER_OF_BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new Snapshot(counts);
+    }
+
+    /**
+     * 0 ~ 31은 그대로 버킷 번호로 쓰고, 그보다 크면 (상위 비트 위치, 그 아래 4비트)로 버킷을 정한다.
+     */
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * 버킷에 들어가는 가장 큰 값
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long totalCount;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            this.totalCount = total;
+        }
+
+        public long getCount() {
+            return totalCount;
+        }
+
+        public long percentile(double quantile) {
+            if (totalCount == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(quantile * totalCount);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return upperBoundOf(i);
+                }
+            }
+            return getMax();
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return upperBoundOf(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package thread.throughput;
+
+import thread.throughput.ThroughputHttpServer.RunningServer;
+import thread.throughput.ThroughputHttpServer.WordCountHandler;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * JMeter 없이 처리량을 측정하는 내장 부하 생성기
+ * 같은 프로세스 안에서 loopback 주소로 ThroughputHttpServer를 띄우고,
+ * 스레드 풀 크기를 바꿔가며 처리량과 p50/p99/p999 지연 시간을 출력한다.
+ *
+ * 1. closed loop : 클라이언트 스레드마다 응답을 받자마자 다음 요청을 보낸다. 서버가 느려지면 요청도 같이 줄어든다.
+ * 2. open loop : 서버 속도와 상관없이 정해진 간격(rate)으로 요청을 보낸다.
+ *    지연 시간을 실제로 보낸 시점이 아니라 "보냈어야 할 시점"부터 재서, 서버가 밀릴 때의 대기 시간이 빠지지 않게 한다.
+ *    (coordinated omission)
+ *
+ * 검색어는 텍스트에서 가장 많이 나오는 단어들 중에서 uniform 또는 zipf 분포로 고른다.
+ * 실제 트래픽처럼 몇몇 단어에 요청이 몰리는 상황은 zipf로 만든다.
+ *
+ * 설정(-D)
+ * load.threads=1,2,4,8,16 : 비교할 서버 스레드 개수
+ * load.mode=closed|open, load.clients=16, load.rate=2000 (open loop 초당 요청 수)
+ * load.warmupSeconds=2, load.durationSeconds=10
+ * load.distribution=zipf|uniform, load.zipfExponent=1.0, load.vocabulary=1000
+ */
+public class LoadGenerator {
+    private static final int PORT = Integer.getInteger("load.port", 18000);
+    private static final String THREAD_COUNTS = System.getProperty("load.threads", "1,2,4,8,16");
+    private static final boolean OPEN_LOOP = "open".equalsIgnoreCase(System.getProperty("load.mode", "closed"));
+    private static final int NUMBER_OF_CLIENTS = Integer.getInteger("load.clients", 16);
+    private static final int REQUESTS_PER_SECOND = Integer.getInteger("load.rate", 2000);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 2);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 10);
+    private static final boolean ZIPF = !"uniform".equalsIgnoreCase(System.getProperty("load.distribution", "zipf"));
+    private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("load.zipfExponent", "1.0"));
+    private static final int VOCABULARY_SIZE = Integer.getInteger("load.vocabulary", 1000);
+
+    public static void main(String[] args) throws Exception {
+        String text = new String(Files.readAllBytes(Paths.get(ThroughputHttpServer.INPUT_FILE)));
+        WordCountHandler handler = ThroughputHttpServer.createHandler(text);
+        WordDistribution words = new WordDistribution(WordFrequencyIndex.build(text).mostFrequentWords(VOCABULARY_SIZE));
+
+        System.out.println(String.format("%s loop, %d clients%s, %s words, warmup %d s, measure %d s",
+                OPEN_LOOP ? "open" : "closed", NUMBER_OF_CLIENTS, OPEN_LOOP ? ", " + REQUESTS_PER_SECOND + " req/s" : "",
+                ZIPF ? "zipf(" + ZIPF_EXPONENT + ")" : "uniform", WARMUP_SECONDS, DURATION_SECONDS));
+        System.out.println(String.format("%8s %12s %10s %10s %10s %8s", "threads", "req/s", "p50 ms", "p99 ms", "p999 ms", "errors"));
+
+        for (String threadCount : THREAD_COUNTS.split(",")) {
+            int numberOfThreads = Integer.parseInt(threadCount.trim());
+            RunningServer server = ThroughputHttpServer.start(handler, PORT, numberOfThreads);
+            try {
+                Result result = run(words);
+                System.out.println(String.format("%8d %12.1f %10.3f %10.3f %10.3f %8d",
+                        numberOfThreads, result.throughput(),
+                        result.percentileMillis(0.50), result.percentileMillis(0.99), result.percentileMillis(0.999),
+                        result.errors));
+            } finally {
+                server.close();
+            }
+        }
+    }
+
+    private static Result run(WordDistribution words) throws InterruptedException {
+        long warmupEnd = System.nanoTime() + WARMUP_SECONDS * 1_000_000_000L;
+        long measureEnd = warmupEnd + DURATION_SECONDS * 1_000_000_000L;
+        long intervalNanos = OPEN_LOOP ? 1_000_000_000L * NUMBER_OF_CLIENTS / REQUESTS_PER_SECOND : 0;
+
+        List<Client> clients = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(NUMBER_OF_CLIENTS);
+        for (int i = 0; i < NUMBER_OF_CLIENTS; i++) {
+            Client client = new Client(words, warmupEnd, measureEnd, intervalNanos, done);
+            clients.add(client);
+            client.start();
+        }
+        done.await();
+
+        Result result = new Result();
+        for (Client client : clients) {
+            result.add(client);
+        }
+        return result;
+    }
+
+    /**
+     * keep-alive 연결 하나로 요청을 계속 보내는 클라이언트 스레드
+     * 지연 시간은 스레드마다 자기 배열에 기록하고, 끝난 뒤에 합친다.
+     */
+    private static class Client extends Thread {
+        private final WordDistribution words;
+        private final long warmupEnd;
+        private final long measureEnd;
+        private final long intervalNanos;
+        private final CountDownLatch done;
+        private long[] latencies = new long[1 << 14];
+        private int numberOfLatencies;
+        private long errors;
+        private Socket socket;
+        private InputStream input;
+
+        Client(WordDistribution words, long warmupEnd, long measureEnd, long intervalNanos, CountDownLatch done) {
+            this.words = words;
+            this.warmupEnd = warmupEnd;
+            this.measureEnd = measureEnd;
+            this.intervalNanos = intervalNanos;
+            this.done = done;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            // open loop에서 클라이언트들이 한꺼번에 출발하지 않도록 시작 시점을 흩뜨린다.
+            long intendedStart = System.nanoTime() + (intervalNanos > 0 ? ThreadLocalRandom.current().nextLong(intervalNanos) : 0);
+
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    if (intervalNanos > 0) {
+                        while (now < intendedStart) {
+                            long sleepNanos = intendedStart - now;
+                            Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                            now = System.nanoTime();
+                        }
+                    } else {
+                        intendedStart = now;
+                    }
+
+                    if (intendedStart >= measureEnd) {
+                        break;
+                    }
+
+                    boolean measured = intendedStart >= warmupEnd;
+                    try {
+                        sendRequest(words.next());
+                        if (measured) {
+                            record(System.nanoTime() - intendedStart);
+                        }
+                    } catch (IOException e) {
+                        disconnect();
+                        if (measured) {
+                            errors++;
+                        }
+                    }
+                    intendedStart += intervalNanos;
+                }
+            } catch (InterruptedException e) {
+            } finally {
+                disconnect();
+                done.countDown();
+            }
+        }
+
+        private void sendRequest(String encodedWord) throws IOException {
+            if (socket == null) {
+                socket = new Socket(InetAddress.getLoopbackAddress(), PORT);
+                socket.setTcpNoDelay(true);
+                input = new BufferedInputStream(socket.getInputStream());
+            }
+
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET /search?word=" + encodedWord + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+
+            int contentLength = readHeaders(input);
+            for (int i = 0; i < contentLength; i++) {
+                if (input.read() < 0) {
+                    throw new IOException("Connection closed while reading the body");
+                }
+            }
+        }
+
+        private void disconnect() {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            socket = null;
+            input = null;
+        }
+
+        private void record(long latencyNanos) {
+            if (numberOfLatencies == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[numberOfLatencies++] = latencyNanos;
+        }
+    }
+
+    /**
+     * 빈 줄까지 헤더를 읽고 Content-Length 값을 돌려준다. 상태 코드가 200이 아니면 실패로 본다.
+     */
+    private static int readHeaders(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int contentLength = 0;
+        boolean statusLine = true;
+
+        while (true) {
+            int b = input.read();
+            if (b < 0) {
+                throw new IOException("Connection closed while reading headers");
+            }
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+
+            if (line.length() == 0) {
+                return contentLength;
+            }
+            String header = line.toString();
+            if (statusLine && !header.contains(" 200 ")) {
+                throw new IOException("Unexpected response: " + header);
+            }
+            if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            }
+            statusLine = false;
+            line.setLength(0);
+        }
+    }
+
+    /**
+     * 단어를 uniform 또는 zipf 분포로 뽑는다.
+     * zipf는 k번째 단어의 가중치를 1 / k^s 로 두고 누적 분포를 이진 탐색한다.
+     *
+     * next()는 요청 줄에 바로 넣을 수 있도록 UTF-8로 URL 인코딩한 단어를 돌려준다.
+     * 인코딩하지 않으면 US_ASCII로 보낼 때 Latin-1 밖의 글자가 '?'로 바뀌어 다른 단어를 세게 된다.
+     * 인코딩은 처음에 한 번만 해서 요청마다 할당하지 않는다.
+     */
+    private static class WordDistribution {
+        private final String[] words;
+        private final double[] cumulative;
+
+        WordDistribution(String[] words) throws UnsupportedEncodingException {
+            this.words = new String[words.length];
+            this.cumulative = new double[words.length];
+
+            for (int k = 0; k < words.length; k++) {
+                // 두 서버 모두 쿼리의 '+'를 공백으로 바꾸지 않으므로 공백은 %20으로 보낸다.
+                this.words[k] = URLEncoder.encode(words[k], StandardCharsets.UTF_8.name()).replace("+", "%20");
+            }
+
+            double sum = 0;
+            for (int k = 0; k < words.length; k++) {
+                sum += ZIPF ? 1.0 / Math.pow(k + 1, ZIPF_EXPONENT) : 1.0;
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < words.length; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        String next() {
+            int index = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+            return words[Math.min(words.length - 1, index >= 0 ? index : -index - 1)];
+        }
+    }
+
+    private static class Result {
+        private long[] latencies = new long[0];
+        private long errors;
+
+        void add(Client client) {
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + client.numberOfLatencies);
+            System.arraycopy(client.latencies, 0, latencies, offset, client.numberOfLatencies);
+            errors += client.errors;
+        }
+
+        double throughput() {
+            return (double) latencies.length / DURATION_SECONDS;
+        }
+
+        double percentileMillis(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+}
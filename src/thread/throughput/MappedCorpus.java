@@ -0,0 +1,142 @@
+package thread.throughput;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * 메모리 맵 파일로 읽은 텍스트
+ * Files.readAllBytes() 후 new String()을 하면 시작할 때 같은 텍스트가 힙에 두 번 올라가고,
+ * String은 2GB를 넘을 수 없다.
+ * FileChannel.map()은 파일을 가상 메모리에 연결만 하고 실제로 읽는 것은 OS가 페이지 단위로 필요할 때 한다.
+ * 그래서 시작이 거의 즉시 끝나고 텍스트가 힙을 차지하지 않는다.
+ *
+ * MappedByteBuffer 하나는 int 인덱스라서 2GB까지만 매핑할 수 있다.
+ * 큰 파일은 여러 영역(region)으로 나눠서 매핑하고, 영역 경계에 걸친 일치도 센다.
+ *
+ * 검색어를 UTF-8 바이트로 바꿔서 바이트 단위로 비교한다.
+ * UTF-8은 문자의 시작 바이트와 이어지는 바이트가 구분되므로 문자 단위로 찾은 결과와 같다.
+ *
+ * 매핑은 파일의 복사본이 아니라 파일 그 자체다. 매핑한 파일을 그 자리에서 다시 쓰면 이미 매핑한 쪽에도 새 내용이 보이고,
+ * 파일이 줄어들면 잘려 나간 페이지를 읽는 순간 SIGBUS(InternalError)가 난다.
+ * 그래서 코퍼스를 다시 읽는(hot reload) 경우에는 새 내용을 다른 파일에 다 쓴 뒤 원래 이름으로 바꿔서(atomic rename) 올려야 한다.
+ * 이름을 바꾸면 경로가 새 파일(inode)을 가리킬 뿐 이전 파일은 지워지지 않으므로, 이전 매핑은 이전 내용을 끝까지 그대로 본다.
+ * 복사본을 만들 필요가 없어서 다시 읽을 때도 시작할 때처럼 파일 크기와 상관없이 바로 끝난다.
+ * fileKey()로 매핑한 파일을 구분할 수 있어서, 같은 파일을 그 자리에서 고쳤는지 알아볼 수 있다.
+ */
+public class MappedCorpus {
+    private static final int DEFAULT_REGION_SIZE = 1 << 30;
+
+    private final MappedByteBuffer[] regions;
+    private final int regionSize;
+    private final long size;
+    private final Object fileKey;
+
+    private MappedCorpus(MappedByteBuffer[] regions, int regionSize, long size, Object fileKey) {
+        this.regions = regions;
+        this.regionSize = regionSize;
+        this.size = size;
+        this.fileKey = fileKey;
+    }
+
+    public static MappedCorpus map(Path path) throws IOException {
+        return map(path, DEFAULT_REGION_SIZE);
+    }
+
+    public static MappedCorpus map(Path path, int regionSize) throws IOException {
+        // 매핑은 채널을 닫은 뒤에도 유효하다.
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            long size = channel.size();
+            int numberOfRegions = (int) ((size + regionSize - 1) / regionSize);
+            MappedByteBuffer[] regions = new MappedByteBuffer[numberOfRegions];
+
+            for (int i = 0; i < numberOfRegions; i++) {
+                long position = (long) i * regionSize;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(regionSize, size - position));
+            }
+
+            return new MappedCorpus(regions, regionSize, size, fileKey);
+        }
+    }
+
+    /**
+     * 매핑한 파일을 가리키는 값(유닉스에서는 장치와 inode). 파일 시스템이 알려주지 않으면 null이다.
+     */
+    public Object fileKey() {
+        return fileKey;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * 기존 countWord처럼 겹치는 일치까지 모두 센다.
+     * position을 바꾸지 않는 절대 위치 get()만 사용하므로 여러 스레드가 동시에 호출해도 된다.
+     */
+    public long count(String word) {
+        byte[] pattern = word.getBytes(StandardCharsets.UTF_8);
+        if (pattern.length == 0) {
+            return size + 1;
+        }
+
+        byte first = pattern[0];
+        long count = 0;
+
+        for (int r = 0; r < regions.length; r++) {
+            MappedByteBuffer region = regions[r];
+            long regionStart = (long) r * regionSize;
+            int regionLimit = region.limit();
+            // 패턴 전체가 이 영역 안에 들어가는 마지막 시작 위치
+            int lastLocalStart = regionLimit - pattern.length;
+
+            for (int i = 0; i < regionLimit; i++) {
+                if (region.get(i) != first) {
+                    continue;
+                }
+
+                if (i <= lastLocalStart) {
+                    if (matchesWithin(region, i, pattern)) {
+                        count++;
+                    }
+                } else if (matchesAcross(regionStart + i, pattern)) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    private static boolean matchesWithin(MappedByteBuffer region, int offset, byte[] pattern) {
+        for (int j = 1; j < pattern.length; j++) {
+            if (region.get(offset + j) != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 영역 경계에 걸친 후보는 전역 위치로 한 바이트씩 비교한다.
+     */
+    private boolean matchesAcross(long position, byte[] pattern) {
+        if (position + pattern.length > size) {
+            return false;
+        }
+
+        for (int j = 1; j < pattern.length; j++) {
+            long current = position + j;
+            if (regions[(int) (current / regionSize)].get((int) (current % regionSize)) != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
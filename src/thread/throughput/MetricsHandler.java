@@ -0,0 +1,129 @@
+package thread.throughput;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * /metrics
+ * 처리량, 단계별 지연 시간 백분위수, Executor 포화 정도를 "이름 값" 한 줄씩의 텍스트로 돌려준다.
+ * (Prometheus 텍스트 형식과 비슷해서 로컬에서 바로 긁어갈 수 있다.)
+ *
+ * queue_time : 요청이 Executor 큐에서 기다린 시간
+ * count_time : countWord 등 개수를 세는 데 걸린 시간
+ * response_time : 요청을 Executor에 넘긴 뒤 응답을 다 쓸 때까지의 시간
+ *
+ * admission_* 는 AdmissionController가 큐가 가득 차서 거절한(rejected), CoDel로 버린(shed),
+ * 클라이언트별 제한으로 거절한(client_limited) 요청 수다.
+ *
+ * coalesce_* 는 SingleFlight가 실제로 센 횟수와, 다른 요청의 결과를 기다려서 받은(계산을 아낀) 요청 수다.
+ *
+ * 백분위수는 서버가 시작된 뒤 누적된 값이고, 처리량은 이전 /metrics 호출 이후의 값이다.
+ * /metrics 요청 자신은 어느 값에도 들어가지 않는다. 자주 긁을수록 requests_total이 늘고 응답 시간 분포가 당겨지기 때문이다.
+ * (InstrumentedExecutor는 countCurrentTask()로 표시한 작업만 재고, NioWordCountServer에서는 워커 풀을 거치지도 않는다.)
+ */
+public class MetricsHandler implements HttpHandler {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final InstrumentedExecutor executor;
+    private final AdmissionController admission;
+    private final LatencyHistogram countTime;
+    private final SingleFlight<?, ?> coalescer;
+    private long lastScrapeNanos = System.nanoTime();
+    private long lastCompleted;
+
+    public MetricsHandler(InstrumentedExecutor executor, AdmissionController admission,
+                          LatencyHistogram countTime, SingleFlight<?, ?> coalescer) {
+        this.executor = executor;
+        this.admission = admission;
+        this.countTime = countTime;
+        this.coalescer = coalescer;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        // 이 요청도 Executor에서 실행 중이므로 executor_in_flight에서 자기 자신을 뺀다.
+        byte[] response = render(1);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(response);
+        outputStream.close();
+    }
+
+    public byte[] render() {
+        return render(0);
+    }
+
+    private byte[] render(int ownTasks) {
+        StringBuilder builder = new StringBuilder();
+        long completed = executor.getCompletedTasks();
+        long now = System.nanoTime();
+        double requestsPerSecond;
+
+        synchronized (this) {
+            requestsPerSecond = (completed - lastCompleted) * 1_000_000_000.0 / Math.max(1, now - lastScrapeNanos);
+            lastCompleted = completed;
+            lastScrapeNanos = now;
+        }
+
+        append(builder, "requests_total", completed);
+        append(builder, "requests_per_second", requestsPerSecond);
+        appendHistogram(builder, "queue_time", executor.getQueueTime().snapshot());
+        appendHistogram(builder, "count_time", countTime.snapshot());
+        appendHistogram(builder, "response_time", executor.getResponseTime().snapshot());
+        appendSaturation(builder, ownTasks);
+        append(builder, "admission_queued", admission.getQueuedTasks());
+        append(builder, "admission_rejected_total", admission.getRejectedRequests());
+        append(builder, "admission_shed_total", admission.getShedRequests());
+        append(builder, "admission_client_limited_total", admission.getClientLimitedRequests());
+        if (coalescer != null) {
+            append(builder, "coalesce_computations_total", coalescer.getLeaderCount());
+            append(builder, "coalesce_waiters_total", coalescer.getWaiterCount());
+        }
+
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void appendSaturation(StringBuilder builder, int ownTasks) {
+        append(builder, "executor_in_flight", Math.max(0, executor.getInFlightTasks() - ownTasks));
+
+        Executor delegate = executor.getDelegate();
+        if (delegate instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) delegate;
+            append(builder, "executor_pool_size", pool.getPoolSize());
+            append(builder, "executor_active_threads", pool.getActiveCount());
+            append(builder, "executor_queue_depth", pool.getQueue().size());
+            append(builder, "executor_saturation", (double) pool.getActiveCount() / Math.max(1, pool.getMaximumPoolSize()));
+        } else if (delegate instanceof ForkJoinPool) {
+            ForkJoinPool pool = (ForkJoinPool) delegate;
+            append(builder, "executor_pool_size", pool.getPoolSize());
+            append(builder, "executor_active_threads", pool.getActiveThreadCount());
+            append(builder, "executor_queue_depth", pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+            append(builder, "executor_saturation", (double) pool.getActiveThreadCount() / pool.getParallelism());
+        }
+    }
+
+    private static void appendHistogram(StringBuilder builder, String name, LatencyHistogram.Snapshot snapshot) {
+        for (double quantile : QUANTILES) {
+            append(builder, name + "_ms{quantile=\"" + quantile + "\"}", snapshot.percentile(quantile) / 1_000_000.0);
+        }
+        append(builder, name + "_ms_max", snapshot.getMax() / 1_000_000.0);
+        append(builder, name + "_count", snapshot.getCount());
+    }
+
+    private static void append(StringBuilder builder, String name, long value) {
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void append(StringBuilder builder, String name, double value) {
+        builder.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+}
@@ -0,0 +1,545 @@
+package thread.throughput;
+
+import thread.throughput.ThroughputHttpServer.WordCountHandler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector 기반 논블로킹 HTTP 프론트 엔드
+ * com.sun.net.httpserver는 요청마다 블로킹 읽기/쓰기를 하고 여러 객체를 새로 만든다.
+ * 여기서는 소수의 이벤트 루프 스레드가 수천 개의 keep-alive 연결을 Selector 하나씩으로 나눠 맡는다.
+ *
+ * 1. acceptor 스레드가 연결을 받아서 이벤트 루프에 라운드 로빈으로 넘긴다.
+ * 2. 이벤트 루프는 연결마다 재사용하는 direct ByteBuffer에 요청을 읽고, 바이트 그대로 요청 라인을 파싱한다.
+ * 3. CPU를 많이 쓰는 단어 세기는 워커 풀에서 WordCountHandler.respond()로 처리한다.
+ * 4. 워커가 끝나면 결과를 이벤트 루프의 큐에 넣고 selector.wakeup()으로 깨워서 응답을 쓰게 한다.
+ *
+ * 워커 풀에는 AdmissionController를 거쳐서 넘긴다. 큐가 가득 차서 거절되거나 CoDel로 버려진 요청은 503,
+ * 클라이언트별 동시 요청 수를 넘은 요청은 워커 풀에 넘기기 전에 바로 429로 응답한다.
+ *
+ * /metrics 요청은 워커 풀을 거치지 않고 이벤트 루프에서 바로 MetricsHandler의 결과를 쓴다.
+ *
+ * 응답은 연결마다 재사용하는 direct 버퍼(BUFFER_SIZE)에 쓴다. 단어가 많은 /search나 breakdown처럼 응답이 버퍼보다 크면
+ * 그 응답만 크기에 맞는 힙 버퍼를 새로 만들어서 쓴다.
+ * 연결 하나를 처리하다 생긴 예외는 그 연결만 닫고, 이벤트 루프의 다른 연결에는 영향을 주지 않는다.
+ * 워커가 요청을 처리하는 동안 연결이 닫히면, 그 연결의 버퍼는 워커의 결과가 돌아온 뒤에야 풀로 돌려준다.
+ *
+ * 연결 하나에서는 한 번에 요청 하나만 처리한다. 처리하는 동안은 읽기 관심을 꺼두고 응답을 다 쓴 뒤에 다음 요청을 읽는다.
+ */
+public class NioWordCountServer {
+    private static final int BUFFER_SIZE = 4096;
+    private static final int BACKLOG = 1024;
+
+    private static final byte[] GET_SEARCH = ascii("GET /search?");
+    private static final byte[] GET_METRICS = ascii("GET /metrics ");
+    private static final byte[] GET = ascii("GET ");
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+    private static final byte[] CONNECTION = ascii("connection:");
+    private static final byte[] CLOSE = ascii("close");
+    private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+    private static final byte[] STATUS_200 = ascii("HTTP/1.1 200 OK\r\n");
+    private static final byte[] STATUS_400 = ascii("HTTP/1.1 400 Bad Request\r\n");
+    private static final byte[] STATUS_404 = ascii("HTTP/1.1 404 Not Found\r\n");
+    private static final byte[] STATUS_429 = ascii("HTTP/1.1 429 Too Many Requests\r\n");
+    private static final byte[] STATUS_503 = ascii("HTTP/1.1 503 Service Unavailable\r\n");
+    private static final byte[] STATUS_500 = ascii("HTTP/1.1 500 Internal Server Error\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] CRLF_CRLF = ascii("\r\n\r\n");
+    private static final byte[] SPACE = ascii(" ");
+
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private final WordCountHandler handler;
+    private final MetricsHandler metricsHandler;
+    private final AdmissionController workers;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    public NioWordCountServer(int port, int numberOfEventLoops, WordCountHandler handler,
+                              MetricsHandler metricsHandler, AdmissionController workers) {
+        this.port = port;
+        this.eventLoops = new EventLoop[numberOfEventLoops];
+        this.handler = handler;
+        this.metricsHandler = metricsHandler;
+        this.workers = workers;
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.start();
+        }
+
+        Thread acceptor = new Thread(() -> {
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    eventLoops[next].register(channel);
+                    next = (next + 1) % eventLoops.length;
+                } catch (IOException e) {
+                    if (serverChannel.isOpen()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "nio-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * 새 연결을 그만 받고, 이벤트 루프가 스스로 연결과 Selector를 닫고 끝나게 한다.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+        }
+
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+        // 이벤트 루프 스레드에서만 접근하므로 동기화가 필요 없다.
+        private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+        private final byte[] decodeBuffer = new byte[BUFFER_SIZE];
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.offer(channel);
+            selector.wakeup();
+        }
+
+        void complete(Connection connection) {
+            completed.offer(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerNewChannels();
+                    writeCompletedResponses();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                onReadable(connection);
+                            } else if (key.isWritable()) {
+                                onWritable(connection);
+                            }
+                        } catch (IOException e) {
+                            close(connection);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            close(connection);
+                        }
+                    }
+                }
+
+                for (SelectionKey key : selector.keys()) {
+                    close((Connection) key.attachment());
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                Connection connection = new Connection(channel, acquireBuffer(), acquireBuffer());
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+        }
+
+        private void writeCompletedResponses() {
+            Connection connection;
+            while ((connection = completed.poll()) != null) {
+                connection.inFlight = false;
+                if (connection.closed) {
+                    // 워커가 처리하는 동안 닫힌 연결. close()가 미뤄 둔 버퍼를 이제 돌려준다.
+                    releaseBuffers(connection);
+                    continue;
+                }
+                try {
+                    if (connection.status == 200) {
+                        writeResponse(connection, STATUS_200, connection.response);
+                    } else {
+                        writeResponse(connection, statusLine(connection.status), null);
+                    }
+                } catch (IOException e) {
+                    close(connection);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    close(connection);
+                }
+            }
+        }
+
+        private void onReadable(Connection connection) throws IOException {
+            if (connection.channel.read(connection.readBuffer) < 0) {
+                close(connection);
+                return;
+            }
+            dispatch(connection);
+        }
+
+        private void onWritable(Connection connection) throws IOException {
+            connection.channel.write(connection.pendingWrite);
+            if (!connection.pendingWrite.hasRemaining()) {
+                afterWrite(connection);
+            }
+        }
+
+        /**
+         * 읽기 버퍼에 온전한 요청 헤더가 있으면 파싱해서 처리를 시작한다.
+         */
+        private void dispatch(Connection connection) throws IOException {
+            ByteBuffer buffer = connection.readBuffer;
+            int headerEnd = indexOf(buffer, 0, buffer.position(), CRLF_CRLF);
+            if (headerEnd < 0) {
+                if (!buffer.hasRemaining()) {
+                    // 헤더가 버퍼보다 크다.
+                    close(connection);
+                }
+                return;
+            }
+
+            int requestEnd = headerEnd + CRLF_CRLF.length;
+            int lineEnd = indexOf(buffer, 0, requestEnd, CRLF);
+            connection.keepAlive = isKeepAlive(buffer, lineEnd, headerEnd);
+            connection.key.interestOps(0);
+
+            if (!startsWith(buffer, 0, GET)) {
+                consume(buffer, requestEnd);
+                writeResponse(connection, STATUS_400, null);
+                return;
+            }
+            if (metricsHandler != null && startsWith(buffer, 0, GET_METRICS)) {
+                // 워커 풀이 포화되어도 지표는 읽을 수 있어야 하므로 이벤트 루프에서 바로 응답한다.
+                consume(buffer, requestEnd);
+                writeResponse(connection, STATUS_200, metricsHandler.render());
+                return;
+            }
+            if (!startsWith(buffer, 0, GET_SEARCH)) {
+                consume(buffer, requestEnd);
+                writeResponse(connection, STATUS_404, null);
+                return;
+            }
+
+            int queryStart = GET_SEARCH.length;
+            int queryEnd = indexOf(buffer, queryStart, lineEnd, SPACE);
+            if (queryEnd < 0) {
+                consume(buffer, requestEnd);
+                writeResponse(connection, STATUS_400, null);
+                return;
+            }
+
+            String query = decode(buffer, queryStart, queryEnd);
+            consume(buffer, requestEnd);
+
+            InetAddress client = null;
+            if (workers.limitsClients()) {
+                client = ((InetSocketAddress) connection.channel.getRemoteAddress()).getAddress();
+                if (!workers.enterClient(client)) {
+                    writeResponse(connection, STATUS_429, null);
+                    return;
+                }
+            }
+
+            InetAddress admittedClient = client;
+            connection.inFlight = true;
+            try {
+                workers.execute(() -> {
+                    int rejection = AdmissionController.rejectionStatus();
+                    try {
+                        if (rejection != 0) {
+                            connection.status = rejection;
+                        } else {
+                            InstrumentedExecutor.countCurrentTask();
+                            connection.response = handler.respond(query);
+                            connection.status = connection.response == null ? 400 : 200;
+                        }
+                    } catch (RuntimeException e) {
+                        connection.status = 500;
+                    } finally {
+                        if (admittedClient != null) {
+                            workers.exitClient(admittedClient);
+                        }
+                    }
+                    complete(connection);
+                });
+            } catch (RuntimeException e) {
+                connection.inFlight = false;
+                throw e;
+            }
+        }
+
+        private byte[] statusLine(int status) {
+            switch (status) {
+                case 400:
+                    return STATUS_400;
+                case 429:
+                    return STATUS_429;
+                case 503:
+                    return STATUS_503;
+                default:
+                    return STATUS_500;
+            }
+        }
+
+        private void writeResponse(Connection connection, byte[] statusLine, byte[] body) throws IOException {
+            int bodyLength = body == null ? 0 : body.length;
+            int length = statusLine.length + CONTENT_LENGTH.length + decimalLength(bodyLength) + CRLF.length
+                    + (connection.keepAlive ? 0 : CONNECTION_CLOSE.length) + CRLF.length + bodyLength;
+
+            ByteBuffer buffer = connection.writeBuffer;
+            if (length > buffer.capacity()) {
+                // 드문 큰 응답 때문에 모든 연결의 버퍼를 키우지 않고, 이 응답만 따로 할당한다.
+                buffer = ByteBuffer.allocate(length);
+            }
+            connection.pendingWrite = buffer;
+            buffer.clear();
+            buffer.put(statusLine);
+            buffer.put(CONTENT_LENGTH);
+            putDecimal(buffer, bodyLength);
+            buffer.put(CRLF);
+            if (!connection.keepAlive) {
+                buffer.put(CONNECTION_CLOSE);
+            }
+            buffer.put(CRLF);
+            if (body != null) {
+                buffer.put(body);
+            }
+            buffer.flip();
+
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                afterWrite(connection);
+            }
+        }
+
+        private void afterWrite(Connection connection) throws IOException {
+            if (!connection.keepAlive) {
+                close(connection);
+                return;
+            }
+
+            connection.key.interestOps(SelectionKey.OP_READ);
+            if (connection.readBuffer.position() > 0) {
+                // 파이프라이닝으로 이미 다음 요청이 들어와 있을 수 있다.
+                dispatch(connection);
+            }
+        }
+
+        private boolean isKeepAlive(ByteBuffer buffer, int lineEnd, int headerEnd) {
+            boolean http11 = lineEnd >= HTTP_1_1.length && startsWith(buffer, lineEnd - HTTP_1_1.length, HTTP_1_1);
+            int header = indexOfIgnoreCase(buffer, lineEnd, headerEnd, CONNECTION);
+            if (header < 0) {
+                return http11;
+            }
+
+            int valueEnd = indexOf(buffer, header, headerEnd + CRLF.length, CRLF);
+            if (http11) {
+                return indexOfIgnoreCase(buffer, header, valueEnd, CLOSE) < 0;
+            }
+            return indexOfIgnoreCase(buffer, header, valueEnd, KEEP_ALIVE) >= 0;
+        }
+
+        /**
+         * 퍼센트 인코딩(%XX)을 풀어서 UTF-8 문자열로 만든다.
+         */
+        private String decode(ByteBuffer buffer, int from, int to) {
+            int length = 0;
+            for (int i = from; i < to && length < decodeBuffer.length; i++) {
+                byte b = buffer.get(i);
+                if (b == '%' && i + 2 < to) {
+                    int high = Character.digit(buffer.get(i + 1), 16);
+                    int low = Character.digit(buffer.get(i + 2), 16);
+                    if (high >= 0 && low >= 0) {
+                        decodeBuffer[length++] = (byte) (high << 4 | low);
+                        i += 2;
+                        continue;
+                    }
+                }
+                decodeBuffer[length++] = b;
+            }
+            return new String(decodeBuffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private ByteBuffer acquireBuffer() {
+            ByteBuffer buffer = freeBuffers.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        private void close(Connection connection) {
+            if (connection.closed) {
+                return;
+            }
+            connection.closed = true;
+
+            if (connection.key != null) {
+                connection.key.cancel();
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+            }
+
+            // 워커가 아직 이 연결의 요청을 처리 중이면 버퍼를 돌려주지 않는다.
+            // 돌려준 버퍼를 새 연결이 받은 뒤에 이 연결의 응답이 그 위에 쓰이면 다른 클라이언트의 응답이 깨진다.
+            if (!connection.inFlight) {
+                releaseBuffers(connection);
+            }
+        }
+
+        private void releaseBuffers(Connection connection) {
+            connection.readBuffer.clear();
+            connection.writeBuffer.clear();
+            freeBuffers.push(connection.readBuffer);
+            freeBuffers.push(connection.writeBuffer);
+        }
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final ByteBuffer readBuffer;
+        final ByteBuffer writeBuffer;
+        // 지금 쓰고 있는 응답. 보통은 writeBuffer이고, 응답이 그보다 크면 따로 할당한 힙 버퍼다.
+        ByteBuffer pendingWrite;
+        SelectionKey key;
+        boolean keepAlive;
+        boolean closed;
+        // 워커에 넘긴 요청이 아직 completed 큐로 돌아오지 않았다. 이벤트 루프에서만 읽고 쓴다.
+        boolean inFlight;
+
+        // 워커 스레드가 쓰고 이벤트 루프가 읽는다. ConcurrentLinkedQueue를 거치면서 happens-before가 보장된다.
+        int status;
+        byte[] response;
+
+        Connection(SocketChannel channel, ByteBuffer readBuffer, ByteBuffer writeBuffer) {
+            this.channel = channel;
+            this.readBuffer = readBuffer;
+            this.writeBuffer = writeBuffer;
+        }
+    }
+
+    /**
+     * 처리한 요청만큼 버퍼 앞부분을 버리고, 남은 바이트(파이프라이닝된 다음 요청)를 앞으로 당긴다.
+     */
+    private static void consume(ByteBuffer buffer, int length) {
+        buffer.flip();
+        buffer.position(length);
+        buffer.compact();
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset, byte[] prefix) {
+        if (offset + prefix.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte[] pattern) {
+        for (int i = from; i <= to - pattern.length; i++) {
+            if (startsWith(buffer, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfIgnoreCase(ByteBuffer buffer, int from, int to, byte[] lowerCasePattern) {
+        for (int i = from; i <= to - lowerCasePattern.length; i++) {
+            int j = 0;
+            while (j < lowerCasePattern.length && toLowerCase(buffer.get(i + j)) == lowerCasePattern[j]) {
+                j++;
+            }
+            if (j == lowerCasePattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static int decimalLength(long value) {
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Long.toString()으로 문자열을 만들지 않고 숫자를 바로 버퍼에 쓴다.
+     */
+    private static void putDecimal(ByteBuffer buffer, long value) {
+        int length = decimalLength(value);
+        int end = buffer.position() + length;
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,73 @@
+package thread.throughput;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork/Join 병렬 스캔
+ * 텍스트를 CHUNK_SIZE 크기의 구간으로 나눠서 ForkJoinPool의 여러 스레드가 동시에 부분 문자열 개수를 센다.
+ * 인덱스로 답할 수 없는 느린 쿼리 하나가 스레드 하나를 오래 붙잡고 있는 대신, 코어 수만큼 나눠서 빨리 끝낸다.
+ *
+ * 구간 경계에 걸친 일치는 "시작 위치가 속한 구간"에서만 센다.
+ * 각 구간은 [from, to) 에서 시작하는 일치만 세고, 비교할 때는 to 뒤로 word.length() - 1 글자까지 읽는다.
+ * 그래서 경계에 걸친 일치를 놓치거나 두 번 세지 않고, 기존 countWord처럼 겹치는 일치도 모두 센다.
+ */
+public class ParallelSubstringCounter {
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final ForkJoinPool pool;
+
+    public ParallelSubstringCounter(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public long count(String text, String word) {
+        return pool.invoke(new CountTask(text, word, 0, text.length()));
+    }
+
+    static long countInRange(String text, String word, int from, int to) {
+        int wordLength = word.length();
+        int lastStart = Math.min(to, text.length() - wordLength + 1);
+        char first = word.charAt(0);
+        long count = 0;
+
+        for (int i = from; i < lastStart; i++) {
+            if (text.charAt(i) == first && text.regionMatches(i, word, 0, wordLength)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static class CountTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+        private final String word;
+        private final int from;
+        private final int to;
+
+        CountTask(String text, String word, int from, int to) {
+            this.text = text;
+            this.word = word;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= CHUNK_SIZE) {
+                return countInRange(text, word, from, to);
+            }
+
+            int middle = (from + to) >>> 1;
+            CountTask left = new CountTask(text, word, from, middle);
+            CountTask right = new CountTask(text, word, middle, to);
+
+            left.fork();
+            long rightCount = right.compute();
+            return left.join() + rightCount;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package thread.throughput;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 크기가 제한된 응답 캐시
+ * 실제 트래픽은 몇몇 인기 단어에 몰리기 때문에, 한 번 만든 응답 byte[]를 재사용하면 스캔과 인코딩을 모두 건너뛸 수 있다.
+ *
+ * 락 하나로 전체를 보호하면 모든 요청이 그 락에서 줄을 서게 되므로,
+ * 키의 해시로 여러 세그먼트로 나누고 세그먼트마다 락과 LinkedHashMap(access order)을 따로 둔다.
+ *
+ * 제거 정책
+ * LRU : 가장 오래 사용하지 않은 항목을 버린다.
+ * TINY_LFU : W-TinyLFU. 작은 LRU 창(window)과 SLRU(probation/protected) 본 영역으로 나누고,
+ *            창에서 밀려난 후보와 본 영역의 희생자 중 최근 사용 빈도(count-min sketch)가 높은 쪽을 남긴다.
+ *            한 번 스캔되고 마는 키들이 인기 단어를 밀어내지 못한다.
+ *
+ * 코퍼스가 바뀌면 clear()를 호출한다. clear()는 epoch를 올리기 때문에
+ * 이전 코퍼스로 계산을 시작한 요청이 뒤늦게 put()을 해도 캐시에 들어가지 않는다.
+ */
+public class ResponseCache {
+    private static final int MAX_SEGMENTS = 16;
+
+    public enum EvictionPolicy {
+        LRU,
+        TINY_LFU
+    }
+
+    private final Segment[] segments;
+    private final AtomicLong epoch = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache(int maximumSize, EvictionPolicy policy) {
+        int numberOfSegments = Math.max(1, Math.min(MAX_SEGMENTS, Integer.highestOneBit(maximumSize / 64)));
+        int segmentSize = Math.max(1, maximumSize / numberOfSegments);
+
+        segments = new Segment[numberOfSegments];
+        for (int i = 0; i < numberOfSegments; i++) {
+            segments[i] = policy == EvictionPolicy.LRU ? new LruSegment(segmentSize) : new TinyLfuSegment(segmentSize);
+        }
+    }
+
+    /**
+     * 값을 계산하기 전에 읽어두고 put()에 넘긴다.
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
+    public byte[] get(String key) {
+        Segment segment = segmentFor(key);
+        byte[] value;
+
+        segment.lock.lock();
+        try {
+            value = segment.get(key);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    public void put(String key, long computedAtEpoch, byte[] value) {
+        Segment segment = segmentFor(key);
+
+        segment.lock.lock();
+        try {
+            if (computedAtEpoch != epoch.get()) {
+                return;
+            }
+            evictions.add(segment.put(key, value));
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void clear() {
+        epoch.incrementAndGet();
+
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    private abstract static class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+
+        abstract byte[] get(String key);
+
+        /**
+         * 새 값을 넣고 제거된 항목 개수를 돌려준다.
+         */
+        abstract int put(String key, byte[] value);
+
+        abstract void clear();
+    }
+
+    private static class LruSegment extends Segment {
+        private final int maximumSize;
+        private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        LruSegment(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        byte[] get(String key) {
+            return entries.get(key);
+        }
+
+        @Override
+        int put(String key, byte[] value) {
+            entries.put(key, value);
+            if (entries.size() <= maximumSize) {
+                return 0;
+            }
+
+            removeEldest(entries);
+            return 1;
+        }
+
+        @Override
+        void clear() {
+            entries.clear();
+        }
+    }
+
+    /**
+     * window(1%) -> probation(본 영역의 20%) -> protected(본 영역의 80%)
+     * 새 항목은 window에 들어가고, window에서 밀려나면 probation의 가장 오래된 항목과 빈도를 겨룬다.
+     * probation에서 다시 사용되면 protected로 올라가고, protected가 넘치면 가장 오래된 항목이 probation으로 내려간다.
+     */
+    private static class TinyLfuSegment extends Segment {
+        private final int windowMaximum;
+        private final int mainMaximum;
+        private final int protectedMaximum;
+        private final LinkedHashMap<String, byte[]> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, byte[]> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+
+        TinyLfuSegment(int maximumSize) {
+            windowMaximum = Math.max(1, maximumSize / 100);
+            mainMaximum = Math.max(1, maximumSize - windowMaximum);
+            protectedMaximum = mainMaximum * 8 / 10;
+            sketch = new FrequencySketch(maximumSize);
+        }
+
+        @Override
+        byte[] get(String key) {
+            sketch.increment(key);
+
+            byte[] value = window.get(key);
+            if (value != null) {
+                return value;
+            }
+
+            value = protectedEntries.get(key);
+            if (value != null) {
+                return value;
+            }
+
+            value = probation.remove(key);
+            if (value != null) {
+                protectedEntries.put(key, value);
+                if (protectedEntries.size() > protectedMaximum) {
+                    Map.Entry<String, byte[]> demoted = removeEldest(protectedEntries);
+                    probation.put(demoted.getKey(), demoted.getValue());
+                }
+            }
+            return value;
+        }
+
+        @Override
+        int put(String key, byte[] value) {
+            if (window.containsKey(key)) {
+                window.put(key, value);
+                return 0;
+            }
+            if (protectedEntries.containsKey(key)) {
+                protectedEntries.put(key, value);
+                return 0;
+            }
+            if (probation.containsKey(key)) {
+                probation.put(key, value);
+                return 0;
+            }
+
+            window.put(key, value);
+            if (window.size() <= windowMaximum) {
+                return 0;
+            }
+
+            Map.Entry<String, byte[]> candidate = removeEldest(window);
+            if (probation.size() + protectedEntries.size() < mainMaximum) {
+                probation.put(candidate.getKey(), candidate.getValue());
+                return 0;
+            }
+
+            LinkedHashMap<String, byte[]> victimQueue = probation.isEmpty() ? protectedEntries : probation;
+            String victim = victimQueue.keySet().iterator().next();
+            if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim)) {
+                victimQueue.remove(victim);
+                probation.put(candidate.getKey(), candidate.getValue());
+            }
+            return 1;
+        }
+
+        @Override
+        void clear() {
+            window.clear();
+            probation.clear();
+            protectedEntries.clear();
+        }
+    }
+
+    /**
+     * count-min sketch
+     * 키마다 4개의 해시로 byte 카운터 4개를 올리고, 그중 가장 작은 값을 빈도로 쓴다.
+     * 증가 횟수가 용량의 10배에 이르면 모든 카운터를 절반으로 줄여서 오래된 인기도가 계속 남지 않게 한다.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(16, maximumSize * 2) - 1) << 1;
+            table = new byte[width * DEPTH];
+            mask = width - 1;
+            sampleSize = Math.max(10, maximumSize * 10);
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(hash, i);
+                if (table[index] < MAX_COUNT) {
+                    table[index]++;
+                }
+            }
+
+            if (++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, table[indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+
+    private static Map.Entry<String, byte[]> removeEldest(LinkedHashMap<String, byte[]> map) {
+        Iterator<Map.Entry<String, byte[]>> iterator = map.entrySet().iterator();
+        Map.Entry<String, byte[]> eldest = new AbstractMap.SimpleImmutableEntry<>(iterator.next());
+        iterator.remove();
+        return eldest;
+    }
+}
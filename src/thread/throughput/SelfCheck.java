@@ -0,0 +1,244 @@
+package thread.throughput;
+
+import thread.reentrantreadwritelock.Backend;
+import thread.reentrantreadwritelock.PriceCounts;
+
+import java.util.Random;
+
+/**
+ * 인덱스와 자료구조를 임의의 입력으로 만들어서 단순한 방법으로 구한 값과 비교하는 자가 점검
+ * 제품 코드에 main을 하나씩 두지 않고 여기에 모아서, 임의의 텍스트와 단어를 만드는 도우미를 함께 쓴다.
+ *
+ * java thread.throughput.SelfCheck [aho_corasick|suffix_array|backends|all] [seed]
+ * seed를 주면 같은 입력으로 다시 돌릴 수 있고, 실패하면 메시지에 seed가 들어 있다.
+ */
+public class SelfCheck {
+
+    public static void main(String[] args) {
+        String target = args.length > 0 ? args[0] : "all";
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        boolean all = target.equals("all");
+        boolean ran = false;
+
+        if (all || target.equals("aho_corasick")) {
+            checkAhoCorasick(seed);
+            ran = true;
+        }
+        if (all || target.equals("suffix_array")) {
+            checkSuffixArray(seed);
+            ran = true;
+        }
+        if (all || target.equals("backends")) {
+            checkBackends(seed);
+            ran = true;
+        }
+        if (!ran) {
+            throw new IllegalArgumentException("Unknown check: " + target);
+        }
+    }
+
+    /**
+     * 임의의 텍스트와 단어 목록으로 오토마톤을 만들고, 단어마다 indexOf 루프로 센 값과 비교한다.
+     * 알파벳을 작게 잡아 서로의 접두사/접미사인 단어와 실패 링크를 여러 번 따라가는 경우가 많이 나오게 한다.
+     * 중복 단어, 빈 문자열, Latin-1 밖의 문자도 섞는다.
+     */
+    static void checkAhoCorasick(long seed) {
+        Random random = new Random(seed);
+        char[] alphabet = {'a', 'b', 'c', 'd', 'Ā', '가'};
+        int automata = 0;
+        int words = 0;
+
+        for (int round = 0; round < 500; round++) {
+            int letters = 1 + random.nextInt(alphabet.length);
+            String text = randomString(random, alphabet, letters, random.nextInt(500));
+            String[] patterns = new String[1 + random.nextInt(30)];
+            for (int w = 0; w < patterns.length; w++) {
+                if (w > 0 && random.nextInt(10) == 0) {
+                    patterns[w] = patterns[random.nextInt(w)];
+                } else if (!text.isEmpty() && random.nextBoolean()) {
+                    patterns[w] = randomSubstring(random, text, 6);
+                } else {
+                    patterns[w] = randomString(random, alphabet, letters, random.nextInt(5));
+                }
+            }
+
+            long[] actual = AhoCorasickAutomaton.build(patterns).count(text);
+            for (int w = 0; w < patterns.length; w++) {
+                long expected = SwarSubstringScanner.countWithIndexOf(text, patterns[w]);
+                if (expected != actual[w]) {
+                    throw new IllegalStateException(String.format("seed %d: \"%s\" in \"%s\": indexOf %d, Aho-Corasick %d",
+                            seed, patterns[w], text, expected, actual[w]));
+                }
+            }
+            automata++;
+            words += patterns.length;
+        }
+
+        System.out.println(String.format("Aho-Corasick, seed %d: %d automata, %d words checked, results are identical", seed, automata, words));
+    }
+
+    /**
+     * 알파벳이 작은 임의의 텍스트로 인덱스를 만들고, 단순한 방법으로 구한 값과 비교한다.
+     * 알파벳이 작을수록 긴 반복이 많아져 prefix doubling이 여러 번 돌고 그룹도 커진다.
+     * 접미사 순서는 이웃한 접미사를 직접 비교하고, LCP는 글자를 하나씩 세고, count는 indexOf 루프로 확인한다.
+     * 단어에는 텍스트에 없는 글자도 하나 섞는다.
+     */
+    static void checkSuffixArray(long seed) {
+        Random random = new Random(seed);
+        char[] alphabet = {'a', 'b', 'c', 'd', 'e'};
+        int texts = 0;
+        int words = 0;
+
+        for (int round = 0; round < 300; round++) {
+            int letters = 1 + random.nextInt(alphabet.length - 1);
+            String text = randomString(random, alphabet, letters, random.nextInt(400));
+            SuffixArrayIndex index = SuffixArrayIndex.build(text, 1 + random.nextInt(4), random.nextBoolean());
+            texts++;
+
+            int n = text.length();
+            boolean[] seen = new boolean[n];
+            int longest = 0;
+            for (int k = 0; k < n; k++) {
+                int suffix = index.suffixAt(k);
+                if (seen[suffix]) {
+                    throw new IllegalStateException(String.format("seed %d: suffix %d appears twice in \"%s\"", seed, suffix, text));
+                }
+                seen[suffix] = true;
+
+                if (k > 0) {
+                    int previous = index.suffixAt(k - 1);
+                    if (text.substring(previous).compareTo(text.substring(suffix)) >= 0) {
+                        throw new IllegalStateException(String.format("seed %d: suffixes %d and %d out of order in \"%s\"", seed, previous, suffix, text));
+                    }
+                    int length = 0;
+                    while (suffix + length < n && previous + length < n && text.charAt(suffix + length) == text.charAt(previous + length)) {
+                        length++;
+                    }
+                    if (index.lcpAt(k) != length) {
+                        throw new IllegalStateException(String.format("seed %d: LCP at %d is %d, expected %d in \"%s\"", seed, k, index.lcpAt(k), length, text));
+                    }
+                    longest = Math.max(longest, length);
+                }
+            }
+            if (index.longestRepeatedLength() != longest) {
+                throw new IllegalStateException(String.format("seed %d: longest repeat %d, expected %d in \"%s\"", seed, index.longestRepeatedLength(), longest, text));
+            }
+
+            for (int i = 0; i < 20; i++) {
+                String word = n > 0 && random.nextBoolean()
+                        ? randomSubstring(random, text, 8) : randomString(random, alphabet, letters + 1, random.nextInt(6));
+                long expected = SwarSubstringScanner.countWithIndexOf(text, word);
+                long actual = index.count(word);
+                if (expected != actual) {
+                    throw new IllegalStateException(String.format("seed %d: \"%s\" in \"%s\": indexOf %d, suffix array %d", seed, word, text, expected, actual));
+                }
+                words++;
+            }
+        }
+
+        System.out.println(String.format("Suffix array, seed %d: %d texts, %d words checked, results are identical", seed, texts, words));
+    }
+
+    /**
+     * 재고 Backend의 모든 구현에 같은 임의의 변경을 넣고, 가격별 개수 배열로 직접 구한 값과 모든 집계를 비교한다.
+     * 가격 상한은 2의 거듭제곱 근처(세그먼트 트리의 잎 개수, 펜윅 트리의 binary lifting 시작 단계)와 1도 포함하고,
+     * 범위는 상한 밖으로 벗어나거나 뒤집힌 것도, rank는 0과 전체 개수 + 1도 확인한다.
+     */
+    static void checkBackends(long seed) {
+        Random random = new Random(seed);
+        Backend[] backends = Backend.values();
+        int queries = 0;
+
+        for (int round = 0; round < 300; round++) {
+            int highestPrice = round < 70 ? round + 1 : 1 + random.nextInt(300);
+            int[] expected = new int[highestPrice];
+            PriceCounts[] implementations = new PriceCounts[backends.length];
+            for (Backend backend : backends) {
+                implementations[backend.ordinal()] = backend.create(highestPrice);
+            }
+
+            for (int change = 0; change < 200; change++) {
+                int price = random.nextInt(highestPrice);
+                int delta = random.nextInt(expected[price] + 4) - expected[price];
+                expected[price] += delta;
+                for (PriceCounts counts : implementations) {
+                    counts.add(price, delta);
+                }
+
+                for (Backend backend : backends) {
+                    queries += checkPriceCounts(backend, implementations[backend.ordinal()], expected, random, seed);
+                }
+            }
+        }
+
+        System.out.println(String.format("Backends, seed %d: %d queries checked on %d backends, results are identical", seed, queries, backends.length));
+    }
+
+    private static int checkPriceCounts(Backend backend, PriceCounts counts, int[] expected, Random random, long seed) {
+        int highestPrice = expected.length;
+        int lowerBound = random.nextInt(highestPrice + 4) - 2;
+        int upperBound = random.nextInt(highestPrice + 4) - 2;
+        int price = random.nextInt(highestPrice + 2) - 1;
+
+        int count = 0;
+        long value = 0;
+        int lowest = -1;
+        int highest = -1;
+        for (int p = Math.max(lowerBound, 0); p <= Math.min(upperBound, highestPrice - 1); p++) {
+            count += expected[p];
+            value += (long) p * expected[p];
+            if (expected[p] > 0) {
+                lowest = lowest < 0 ? p : lowest;
+                highest = p;
+            }
+        }
+        int total = 0;
+        for (int c : expected) {
+            total += c;
+        }
+        long rank = random.nextInt(total + 2);
+        int priceAtRank = -1;
+        long seen = 0;
+        for (int p = 0; p < highestPrice && rank >= 1; p++) {
+            seen += expected[p];
+            if (seen >= rank) {
+                priceAtRank = p;
+                break;
+            }
+        }
+
+        String range = String.format("seed %d, %s, prices < %d, range [%d, %d]", seed, backend, highestPrice, lowerBound, upperBound);
+        verify(range + ", count(" + price + ")", price >= 0 && price < highestPrice ? expected[price] : 0, counts.count(price));
+        verify(range + ", countInRange", count, counts.countInRange(lowerBound, upperBound));
+        verify(range + ", valueInRange", value, counts.valueInRange(lowerBound, upperBound));
+        verify(range + ", lowestPriceInRange", lowest, counts.lowestPriceInRange(lowerBound, upperBound));
+        verify(range + ", highestPriceInRange", highest, counts.highestPriceInRange(lowerBound, upperBound));
+        verify(range + ", priceAtRank(" + rank + ")", priceAtRank, counts.priceAtRank(rank));
+        return 6;
+    }
+
+    private static void verify(String query, long expected, long actual) {
+        if (expected != actual) {
+            throw new IllegalStateException(String.format("%s: expected %d, got %d", query, expected, actual));
+        }
+    }
+
+    /**
+     * alphabet의 앞 letters개 글자로 만든 length 길이의 문자열
+     */
+    private static String randomString(Random random, char[] alphabet, int letters, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = alphabet[random.nextInt(letters)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * text의 임의의 위치에서 시작하는 1 ~ maxLength 길이의 부분 문자열. text가 비어 있으면 안 된다.
+     */
+    private static String randomSubstring(Random random, String text, int maxLength) {
+        int from = random.nextInt(text.length());
+        return text.substring(from, Math.min(text.length(), from + 1 + random.nextInt(maxLength)));
+    }
+}
@@ -0,0 +1,52 @@
+package thread.throughput;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 같은 키의 계산을 동시에 한 번만 실행한다. (single flight, request coalescing)
+ * 인기 단어에 같은 요청이 한꺼번에 몰리면 스레드마다 똑같은 스캔을 따로 한다.
+ * 처음 온 요청(leader)만 계산하고, 계산이 끝나기 전에 온 같은 키의 요청(waiter)은 그 결과를 기다렸다가 같이 받는다.
+ *
+ * 계산이 끝나면 바로 맵에서 지우므로 결과를 보관하지는 않는다. 보관은 ResponseCache가 맡는다.
+ * waiter 수가 곧 아낀 계산 횟수다.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder waiters = new LongAdder();
+
+    /**
+     * leader가 계산 중에 예외를 던지면 waiter도 같은 예외를 CompletionException으로 감싸서 받는다.
+     */
+    public V execute(K key, Supplier<V> computation) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            waiters.increment();
+            return running.join();
+        }
+
+        leaders.increment();
+        try {
+            V value = computation.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    public long getLeaderCount() {
+        return leaders.sum();
+    }
+
+    public long getWaiterCount() {
+        return waiters.sum();
+    }
+}
@@ -0,0 +1,280 @@
+package thread.throughput;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * 접미사 배열(suffix array) 인덱스
+ * countWord는 온전한 단어가 아니라 겹치는 부분 문자열까지 세기 때문에 단어 빈도 테이블로는 답할 수 없다.
+ * 텍스트의 모든 접미사를 사전순으로 정렬해 두면, 어떤 부분 문자열이든 그 문자열로 시작하는 접미사들이 연속된 구간에 모인다.
+ * 구간의 시작과 끝을 이진 탐색 두 번으로 찾으면 개수는 O(m log n)에 구할 수 있다. (m: 검색어 길이, n: 텍스트 길이)
+ *
+ * 만들 때는 prefix doubling을 사용한다.
+ * 앞 h글자로 정렬된 상태에서 (rank[i], rank[i + h]) 쌍으로 다시 정렬하면 앞 2h글자로 정렬된다.
+ * rank[i]가 같은 그룹끼리는 서로 독립적이므로 그룹마다 ForkJoinPool에서 병렬로 정렬한다.
+ *
+ * LCP 배열은 사전순으로 이웃한 두 접미사의 공통 접두사 길이이며 Kasai 알고리즘으로 O(n)에 만든다.
+ *
+ * 접미사 배열은 int[] 대신 IntBuffer로 들고 있어서, offHeap이면 direct 버퍼로 옮겨 GC 대상 힙에서 빼낼 수 있다.
+ */
+public class SuffixArrayIndex {
+    private final String text;
+    private final IntBuffer suffixes;
+    private final int[] lcp;
+
+    private SuffixArrayIndex(String text, IntBuffer suffixes, int[] lcp) {
+        this.text = text;
+        this.suffixes = suffixes;
+        this.lcp = lcp;
+    }
+
+    public static SuffixArrayIndex build(String text, int parallelism, boolean offHeap) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            int[] suffixArray = buildSuffixArray(text, pool);
+            int[] lcp = buildLcp(text, suffixArray);
+            return new SuffixArrayIndex(text, offHeap ? copyOffHeap(suffixArray) : IntBuffer.wrap(suffixArray), lcp);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 기존 countWord처럼 겹치는 일치까지 센 개수
+     */
+    public long count(String word) {
+        if (word.isEmpty()) {
+            return text.length() + 1;
+        }
+
+        int from = lowerBound(word);
+        int to = upperBound(word, from);
+        return to - from;
+    }
+
+    public int longestRepeatedLength() {
+        int longest = 0;
+        for (int length : lcp) {
+            longest = Math.max(longest, length);
+        }
+        return longest;
+    }
+
+    /**
+     * 접미사 배열과 LCP 배열이 차지하는 메모리(byte). off-heap이면 접미사 배열은 힙 밖에 있다.
+     */
+    public long memoryBytes() {
+        return 4L * suffixes.capacity() + 4L * lcp.length;
+    }
+
+    public boolean isOffHeap() {
+        return suffixes.isDirect();
+    }
+
+    /**
+     * 사전순으로 k번째 접미사의 시작 위치. SelfCheck가 정렬 순서를 확인할 때 쓴다.
+     */
+    int suffixAt(int k) {
+        return suffixes.get(k);
+    }
+
+    /**
+     * k번째와 k - 1번째 접미사의 공통 접두사 길이
+     */
+    int lcpAt(int k) {
+        return lcp[k];
+    }
+
+    private int lowerBound(String word) {
+        int low = 0;
+        int high = suffixes.capacity();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparePrefix(suffixes.get(middle), word) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int upperBound(String word, int from) {
+        int low = from;
+        int high = suffixes.capacity();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparePrefix(suffixes.get(middle), word) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 접미사의 앞 word.length()글자와 word를 비교한다. 접미사가 word로 시작하면 0이다.
+     */
+    private int comparePrefix(int suffix, String word) {
+        int length = Math.min(word.length(), text.length() - suffix);
+        for (int i = 0; i < length; i++) {
+            int difference = text.charAt(suffix + i) - word.charAt(i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length == word.length() ? 0 : -1;
+    }
+
+    private static int[] buildSuffixArray(String text, ForkJoinPool pool) {
+        int n = text.length();
+        int[] suffixArray = new int[n];
+        int[] rank = new int[n];
+        long[] keys = new long[n];
+
+        // 첫 글자로 정렬한다. 상위 32비트는 정렬 기준, 하위 32비트는 접미사 위치다.
+        for (int i = 0; i < n; i++) {
+            keys[i] = (long) text.charAt(i) << 32 | i;
+        }
+        Arrays.parallelSort(keys);
+        for (int k = 0; k < n; k++) {
+            suffixArray[k] = (int) keys[k];
+        }
+        boolean sorted = assignRanks(suffixArray, rank, keys, null);
+
+        for (int h = 1; !sorted && h < n; h <<= 1) {
+            int step = h;
+            int[] groups = groupStarts(suffixArray, rank);
+
+            // 모든 키를 옛 rank로 먼저 계산한 뒤에 정렬해야 그룹끼리 서로의 rank 변경을 보지 않는다.
+            pool.submit(() -> IntStream.range(0, n).parallel().forEach(k -> {
+                int suffix = suffixArray[k];
+                int second = suffix + step < n ? rank[suffix + step] + 1 : 0;
+                keys[k] = (long) second << 32 | suffix;
+            })).join();
+
+            pool.submit(() -> IntStream.range(0, groups.length / 2).parallel().forEach(g -> {
+                int from = groups[2 * g];
+                int to = groups[2 * g + 1];
+                Arrays.sort(keys, from, to);
+                for (int k = from; k < to; k++) {
+                    suffixArray[k] = (int) keys[k];
+                }
+            })).join();
+
+            sorted = assignRanks(suffixArray, rank, keys, groups);
+        }
+
+        return suffixArray;
+    }
+
+    /**
+     * 정렬된 순서대로 rank를 다시 매긴다. rank는 같은 그룹의 첫 위치다.
+     * 키의 상위 32비트(두 번째 정렬 기준)나 이전 rank가 달라지는 곳이 새 그룹의 경계다.
+     * 모든 접미사의 rank가 다르면 true를 돌려준다.
+     */
+    private static boolean assignRanks(int[] suffixArray, int[] rank, long[] keys, int[] sortedGroups) {
+        int n = suffixArray.length;
+        int[] newRank = new int[n];
+        boolean[] touched = null;
+
+        if (sortedGroups != null) {
+            touched = new boolean[n];
+            for (int g = 0; g < sortedGroups.length; g += 2) {
+                for (int k = sortedGroups[g]; k < sortedGroups[g + 1]; k++) {
+                    touched[k] = true;
+                }
+            }
+        }
+
+        int groupStart = 0;
+        int numberOfGroups = 0;
+        for (int k = 0; k < n; k++) {
+            boolean boundary;
+            if (k == 0) {
+                boundary = true;
+            } else if (sortedGroups == null) {
+                boundary = keys[k] >>> 32 != keys[k - 1] >>> 32;
+            } else {
+                boundary = rank[suffixArray[k]] != rank[suffixArray[k - 1]]
+                        || (touched[k] && keys[k] >>> 32 != keys[k - 1] >>> 32);
+            }
+
+            if (boundary) {
+                groupStart = k;
+                numberOfGroups++;
+            }
+            newRank[suffixArray[k]] = groupStart;
+        }
+
+        System.arraycopy(newRank, 0, rank, 0, n);
+        return numberOfGroups == n;
+    }
+
+    /**
+     * 크기가 2 이상인 그룹의 [시작, 끝) 쌍. 크기 1인 그룹은 이미 자리가 정해졌다.
+     */
+    private static int[] groupStarts(int[] suffixArray, int[] rank) {
+        int n = suffixArray.length;
+        int[] groups = new int[n + 1];
+        int size = 0;
+
+        int k = 0;
+        while (k < n) {
+            int end = k + 1;
+            while (end < n && rank[suffixArray[end]] == rank[suffixArray[k]]) {
+                end++;
+            }
+            if (end - k > 1) {
+                groups[size++] = k;
+                groups[size++] = end;
+            }
+            k = end;
+        }
+
+        return Arrays.copyOf(groups, size);
+    }
+
+    /**
+     * Kasai 알고리즘
+     * 텍스트 순서로 접미사를 보면, i번째 접미사의 LCP가 l이면 i + 1번째 접미사의 LCP는 적어도 l - 1이다.
+     */
+    private static int[] buildLcp(String text, int[] suffixArray) {
+        int n = suffixArray.length;
+        int[] rank = new int[n];
+        int[] lcp = new int[n];
+        for (int k = 0; k < n; k++) {
+            rank[suffixArray[k]] = k;
+        }
+
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            if (rank[i] == 0) {
+                length = 0;
+                continue;
+            }
+
+            int previous = suffixArray[rank[i] - 1];
+            while (i + length < n && previous + length < n && text.charAt(i + length) == text.charAt(previous + length)) {
+                length++;
+            }
+            lcp[rank[i]] = length;
+            if (length > 0) {
+                length--;
+            }
+        }
+        return lcp;
+    }
+
+    private static IntBuffer copyOffHeap(int[] suffixArray) {
+        IntBuffer buffer = ByteBuffer.allocateDirect(4 * suffixArray.length).order(ByteOrder.nativeOrder()).asIntBuffer();
+        buffer.put(suffixArray);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,294 @@
+package thread.throughput;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.function.LongSupplier;
+
+/**
+ * SWAR(SIMD Within A Register) 부분 문자열 스캐너
+ * 텍스트를 long 하나에 8글자(byte)씩 묶어 두고, 검색어의 첫 글자와 마지막 글자를 8자리에서 한 번에 비교한다.
+ * 두 글자가 모두 맞는 자리만 후보로 남기고, 후보마다 가운데 글자들을 비교해서 확인한다.
+ * 한 글자씩 비교하는 indexOf 루프와 달리 후보가 아닌 자리는 8글자 단위로 건너뛴다.
+ *
+ * 바이트 비교 : t = x ^ 첫 글자를 8번 반복한 값 이라고 하면 같은 글자 자리의 바이트만 0이 된다.
+ * ~(((t & 0x7F..) + 0x7F..) | t | 0x7F..) 는 0인 바이트의 최상위 비트만 1로 만들고, 바이트 사이에 올림이 생기지 않는다.
+ *
+ * 한 글자를 한 바이트에 담기 때문에 모든 글자가 Latin-1(0 ~ 255)인 텍스트만 지원한다.
+ * 그렇지 않은 텍스트는 create()가 null을 돌려주고 기존 indexOf 루프(countWithIndexOf)를 사용한다.
+ *
+ * 원래는 jdk.incubator.vector(Vector API)로 여러 레인을 비교하려 했지만, 프로젝트의 언어 레벨(Java 8)에서는
+ * 쓸 수 없으므로 long 레지스터 하나를 8레인 벡터처럼 사용한다.
+ *
+ * JVM에 따라 String.indexOf 자체가 SIMD 명령어를 쓰는 intrinsic이라서 이 스캐너보다 빠를 수 있다.
+ * (JDK 17, Latin-1 compact string에서 main()의 2~5라운드 기준 indexOf가 약 2.5배 빨랐다.)
+ * 그래서 서버의 기본값은 indexOf이고, select()는 auto일 때 텍스트 앞부분(CALIBRATION_CHARS)만 묶어서 두 방식을 재고 빠른 쪽을 고른다.
+ * 잰 결과는 JVM마다 한 번만 구하고, indexOf가 빠르다고 나왔으면 전체 텍스트를 묶지 않는다.
+ * main()은 기존 방식과 결과가 같은지 확인하고 두 방식의 속도를 비교한다.
+ */
+public class SwarSubstringScanner {
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long ONES = 0x0101010101010101L;
+    private static final int CALIBRATION_CHARS = 1 << 20;
+    private static final int CALIBRATION_WORDS = 8;
+    private static final int CALIBRATION_ROUNDS = 3;
+
+    public enum Mode {
+        AUTO,
+        SWAR,
+        INDEX_OF
+    }
+
+    // auto의 결과는 주로 JVM에 따라 정해지므로 한 번 잰 결과를 다시 읽는 코퍼스와 다른 샤드에도 사용한다.
+    private static volatile Boolean swarFaster;
+
+    // time()이 잰 스캔의 결과를 모으기만 하고 읽지 않는다. volatile이라서 쓰기를 없앨 수 없다.
+    private static volatile long sink;
+
+    private final String text;
+    private final long[] packed;
+
+    private SwarSubstringScanner(String text, long[] packed) {
+        this.text = text;
+        this.packed = packed;
+    }
+
+    /**
+     * 텍스트를 8글자씩 long에 묶는다. 글자 i는 packed[i / 8]의 (i % 8)번째 바이트에 들어간다. (little endian)
+     * 검색어 끝 글자를 읽을 때 배열 끝을 넘지 않도록 long 두 개만큼 여유를 둔다.
+     */
+    public static SwarSubstringScanner create(String text) {
+        int length = text.length();
+        long[] packed = new long[(length >>> 3) + 2];
+
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c > 0xFF) {
+                return null;
+            }
+            packed[i >>> 3] |= (long) c << ((i & 7) << 3);
+        }
+
+        return new SwarSubstringScanner(text, packed);
+    }
+
+    /**
+     * 설정에 맞는 스캐너를 돌려준다. null이면 indexOf 루프를 사용한다.
+     */
+    public static SwarSubstringScanner select(String text, Mode mode) {
+        if (mode == Mode.INDEX_OF || mode == Mode.AUTO && Boolean.FALSE.equals(swarFaster)) {
+            return null;
+        }
+        if (mode == Mode.SWAR) {
+            return create(text);
+        }
+
+        if (swarFaster == null) {
+            // 전체 텍스트를 묶기 전에 앞부분만 묶어서 잰다. 앞부분이 Latin-1이 아니면 전체도 아니다.
+            String sample = text.length() <= CALIBRATION_CHARS ? text : text.substring(0, CALIBRATION_CHARS);
+            SwarSubstringScanner sampleScanner = create(sample);
+            if (sampleScanner == null) {
+                return null;
+            }
+            swarFaster = calibrate(sampleScanner, sample);
+            if (!swarFaster) {
+                return null;
+            }
+            if (sample == text) {
+                return sampleScanner;
+            }
+        }
+        return create(text);
+    }
+
+    /**
+     * 텍스트 곳곳에서 뽑은 단어로 두 방식을 번갈아 재서 SWAR가 더 빠르면 true를 돌려준다.
+     * 처음 몇 번은 JIT 컴파일이 끝나지 않았으므로 마지막 라운드만 비교한다.
+     */
+    private static boolean calibrate(SwarSubstringScanner scanner, String text) {
+        String[] words = new String[CALIBRATION_WORDS];
+        for (int i = 0; i < words.length; i++) {
+            int start = (int) ((long) text.length() * i / words.length);
+            words[i] = text.substring(start, Math.min(text.length(), start + 4 + i % 4));
+        }
+
+        long scalarNanos = 0;
+        long swarNanos = 0;
+        for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+            scalarNanos = time(() -> {
+                long sum = 0;
+                for (String word : words) {
+                    sum += countWithIndexOf(text, word);
+                }
+                return sum;
+            });
+            swarNanos = time(() -> {
+                long sum = 0;
+                for (String word : words) {
+                    sum += scanner.count(word);
+                }
+                return sum;
+            });
+        }
+
+        System.out.println(String.format("Substring scanner calibrated: SWAR is x%.2f of indexOf, using %s",
+                (double) scalarNanos / swarNanos, swarNanos < scalarNanos ? "SWAR" : "indexOf"));
+        return swarNanos < scalarNanos;
+    }
+
+    /**
+     * 기존 countWord처럼 겹치는 일치까지 센 개수
+     */
+    public long count(String word) {
+        int length = text.length();
+        int wordLength = word.length();
+        if (wordLength == 0) {
+            return countWithIndexOf(text, word);
+        }
+        if (wordLength > length) {
+            return 0;
+        }
+
+        char first = word.charAt(0);
+        char last = word.charAt(wordLength - 1);
+        for (int i = 0; i < wordLength; i++) {
+            if (word.charAt(i) > 0xFF) {
+                // 텍스트에는 Latin-1 글자만 있으므로 일치할 수 없다.
+                return 0;
+            }
+        }
+
+        long firstPattern = ONES * first;
+        long lastPattern = ONES * last;
+        int lastStart = length - wordLength;
+        long count = 0;
+
+        for (int block = 0; block <= lastStart; block += 8) {
+            long candidates = equalBytes(packed[block >>> 3], firstPattern)
+                    & equalBytes(load(block + wordLength - 1), lastPattern);
+
+            while (candidates != 0) {
+                int start = block + (Long.numberOfTrailingZeros(candidates) >>> 3);
+                candidates &= candidates - 1;
+
+                if (start <= lastStart
+                        && (wordLength <= 2 || text.regionMatches(start + 1, word, 1, wordLength - 2))) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    public long memoryBytes() {
+        return 16L + 8L * packed.length;
+    }
+
+    /**
+     * 기존 countWord의 indexOf 루프. 스캐너를 쓸 수 없을 때의 기본 방식이다.
+     * 빈 문자열은 모든 위치(length + 1곳)에서 일치한다. indexOf("", i)는 i가 length를 넘어도 length를 돌려주므로
+     * 루프로 세면 끝나지 않는다. MappedCorpus, AhoCorasickAutomaton과 같은 값을 바로 돌려준다.
+     */
+    static long countWithIndexOf(String text, String word) {
+        if (word.isEmpty()) {
+            return text.length() + 1;
+        }
+
+        long count = 0;
+        int index = 0;
+
+        while (index >= 0) {
+            index = text.indexOf(word, index);
+
+            if (index >= 0) {
+                count++;
+                index++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * position부터 8글자를 읽는다. 8의 배수가 아니면 이웃한 long 두 개를 이어 붙인다.
+     */
+    private long load(int position) {
+        int index = position >>> 3;
+        int shift = (position & 7) << 3;
+        long low = packed[index] >>> shift;
+        // long을 64비트 시프트하면 0비트 시프트와 같으므로 shift가 0인 경우를 따로 처리한다.
+        return shift == 0 ? low : low | packed[index + 1] << (64 - shift);
+    }
+
+    /**
+     * x와 pattern의 바이트가 같은 자리마다 그 바이트의 최상위 비트를 1로 만든다.
+     */
+    private static long equalBytes(long x, long pattern) {
+        long t = x ^ pattern;
+        return ~(((t & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | t | LOW_SEVEN_BITS);
+    }
+
+    /**
+     * 가장 많이 나오는 단어들과 그 단어의 앞부분/뒷부분으로 두 방식의 결과를 비교하고, 같은 단어 목록으로 속도를 잰다.
+     */
+    public static void main(String[] args) throws Exception {
+        String text = new String(Files.readAllBytes(Paths.get(ThroughputHttpServer.INPUT_FILE)));
+        SwarSubstringScanner scanner = create(text);
+        if (scanner == null) {
+            System.out.println("Text has characters outside Latin-1, the scalar scanner is used");
+            return;
+        }
+
+        String[] frequentWords = WordFrequencyIndex.build(text).mostFrequentWords(200);
+        String[] words = new String[frequentWords.length * 3 + 3];
+        int n = 0;
+        for (String word : frequentWords) {
+            words[n++] = word;
+            words[n++] = word.substring(0, Math.min(2, word.length()));
+            words[n++] = " " + word + " ";
+        }
+        words[n++] = "a";
+        words[n++] = "Ā";
+        words[n++] = text.substring(text.length() - 16);
+
+        for (String word : words) {
+            long expected = countWithIndexOf(text, word);
+            long actual = scanner.count(word);
+            if (expected != actual) {
+                throw new IllegalStateException(String.format("Mismatch for \"%s\": indexOf %d, SWAR %d", word, expected, actual));
+            }
+        }
+        System.out.println(String.format("%d words checked, results are identical", words.length));
+
+        for (int round = 0; round < 5; round++) {
+            long scalarNanos = time(() -> {
+                long sum = 0;
+                for (String word : words) {
+                    sum += countWithIndexOf(text, word);
+                }
+                return sum;
+            });
+            long swarNanos = time(() -> {
+                long sum = 0;
+                for (String word : words) {
+                    sum += scanner.count(word);
+                }
+                return sum;
+            });
+
+            double megabytes = (double) text.length() * words.length / (1 << 20);
+            System.out.println(String.format("round %d: indexOf %.0f MB/s, SWAR %.0f MB/s (x%.2f)",
+                    round + 1, megabytes / (scalarNanos / 1e9), megabytes / (swarNanos / 1e9),
+                    (double) scalarNanos / swarNanos));
+        }
+    }
+
+    /**
+     * 스캔 결과를 sink에 더해서, JIT이 쓰지 않는 결과라고 보고 스캔을 없애지 못하게 한다. (JMH의 Blackhole과 같은 역할)
+     */
+    private static long time(LongSupplier scan) {
+        long startTime = System.nanoTime();
+        sink += scan.getAsLong();
+        return System.nanoTime() - startTime;
+    }
+}
@@ -6,11 +6,22 @@ import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * JMeter 프로그램을 이용하여 Throughput을 측정
@@ -18,69 +29,762 @@ import java.util.concurrent.Executors;
  *
  * 스레드가 더 많다는 것은 더 많은 요청을 처리할 수 있다는 뜻이지만,
  * 오버헤드와 컨텍스트 스위칭도 더 많아지기 때문에 최적의 스레드 개수를 미리 알 수 있는 방법은 없다.
+ *
+ * /search?word= (또는 substring=)는 겹치는 부분 문자열의 개수를, /search?wholeword= 는 온전한 단어(토큰)의 개수를 돌려준다.
+ * -Dthroughput.wordIndex=true 로 실행하면 시작할 때 WordFrequencyIndex를 만들어 두고 wholeword를 스캔 없이 O(1)로 답한다.
+ * 인덱스가 없으면 같은 토큰 규칙으로 텍스트를 스캔하므로 답은 같다. 메모리 맵 모드에서는 wholeword를 지원하지 않는다.
+ *
+ * 텍스트 길이가 -Dthroughput.parallelThreshold(기본 4M 글자) 이상이면
+ * 스캔을 ParallelSubstringCounter로 나눠서 모든 코어가 함께 처리한다.
+ *
+ * -Dthroughput.executor=fixed|virtual|work_stealing|adaptive 로 요청을 처리할 Executor를 고른다. (기본 fixed)
+ * adaptive는 실행 중에 처리량을 보면서 풀 크기를 스스로 조절한다. (ExecutorMode 참고)
+ * fixed와 work_stealing의 스레드 개수는 -Dthroughput.threads 로 바꿀 수 있고 기본값은 코어 개수다.
+ * 어떤 모드든 InstrumentedExecutor로 감싸서 같은 기준의 처리량과 지연 시간을 주기적으로 출력한다.
+ *
+ * -Dthroughput.frontEnd=nio 로 실행하면 com.sun.net.httpserver 대신 Selector 기반의 NioWordCountServer가 요청을 받는다.
+ * 이벤트 루프 스레드 개수는 -Dthroughput.eventLoops(기본 2)로 정하고, 단어 세기는 똑같은 WordCountHandler가 워커 풀에서 처리한다.
+ *
+ * -Dthroughput.mmap=true 로 실행하면 텍스트를 String으로 읽지 않고 MappedCorpus로 매핑해서 바이트 단위로 센다.
+ * 이 모드에서는 String이 필요한 단어 인덱스와 병렬 스캔을 사용하지 않는다.
+ * -Dthroughput.reload와 함께 쓸 때는 새 파일을 쓴 뒤 이름을 바꿔서 올려야 진행 중인 요청이 이전 내용을 본다. (MappedCorpus 참고)
+ *
+ * -Dthroughput.cacheSize=N 으로 실행하면 응답 byte[]를 ResponseCache에 최대 N개까지 보관해서 인기 단어를 다시 세지 않는다.
+ * 제거 정책은 -Dthroughput.cachePolicy=lru|tiny_lfu (기본 tiny_lfu)로 고른다.
+ *
+ * /search?words=a,b,c 는 여러 단어의 부분 문자열 개수를 한 번에 세서 "개수,개수,개수" 형태로 돌려준다.
+ * 단어 목록으로 AhoCorasickAutomaton을 만들어서 텍스트를 N번이 아니라 한 번만 스캔하고,
+ * 같은 단어 목록이 반복되면 만들어 둔 오토마톤을 재사용한다.
+ *
+ * -Dthroughput.suffixArray=true 로 실행하면 시작할 때 SuffixArrayIndex를 병렬로 만들어서
+ * 부분 문자열 개수를 스캔 대신 이진 탐색 두 번으로 센다.
+ * -Dthroughput.suffixArrayOffHeap=true 를 함께 주면 접미사 배열을 direct 버퍼(힙 밖)에 둔다.
+ *
+ * -Dthroughput.coalesce=true 로 실행하면 같은 쿼리가 동시에 여러 개 들어왔을 때 SingleFlight로 한 번만 세고 결과를 나눠 준다.
+ *
+ * 부분 문자열 스캔은 -Dthroughput.scanner=auto|swar|index_of (기본 index_of)로 고른다.
+ * swar는 8글자를 long 하나로 비교하는 SwarSubstringScanner이고, auto는 처음 한 번 텍스트 앞부분으로 두 방식을 재서 빠른 쪽을 쓴다.
+ *
+ * 요청 처리 경로는 split()이나 Long.toString() 없이 쿼리 문자열 안에서 바로 파싱하고, 숫자는 스레드별 버퍼에 쓴다.
+ * -Dthroughput.measureAllocation=true 로 실행하면 handle()이 요청마다 할당한 바이트 수(HttpServer 입출력 제외)를 출력한다.
+ *
+ * -Dthroughput.reload=true 로 실행하면 CorpusReloader가 텍스트 파일을 지켜보다가 바뀌면 서버를 멈추지 않고 다시 읽는다.
+ * 새 텍스트와 인덱스는 백그라운드에서 만들고 참조 하나만 바꿔 끼우므로, 처리 중인 요청은 이전 버전으로 끝난다.
+ *
+ * -Dthroughput.corpusDir=디렉터리 로 실행하면 디렉터리의 파일마다 독립된 샤드(텍스트와 인덱스)를 병렬로 만든다.
+ * /search 요청은 모든 샤드에 병렬로 나눠 보내고 개수를 더해서 돌려준다.
+ * 쿼리에 breakdown=true(또는 1) 파라미터를 붙이면 합계 아래에 샤드별 결과를 한 줄씩 덧붙인다. 파라미터 순서는 상관없다.
+ *
+ * -Dthroughput.admission=fail_fast|codel|per_client 로 실행하면 AdmissionController가 과부하일 때 요청을 거절한다.
+ * 아직 시작하지 않은 요청은 -Dthroughput.queueCapacity(기본 1024)개까지만 받고 넘으면 503을 돌려준다.
+ * codel은 -Dthroughput.codel.targetMillis(5)/intervalMillis(100), per_client는 -Dthroughput.clientConcurrency(8)로 조절한다.
+ *
+ * /metrics 는 큐 대기, 개수 세기, 전체 응답 시간의 p50/p90/p99/p999와 Executor 포화 정도를 텍스트로 돌려준다. (MetricsHandler 참고)
+ * 평균과 최댓값만으로는 꼬리 지연 시간이 어느 단계에서 생기는지 알 수 없기 때문이다.
  */
 public class ThroughputHttpServer {
-    private static final String INPUT_FILE = "resource/throughput/war_and_peace.txt";
-    private static final int NUMBER_OF_THREAD = 8;
+    static final String INPUT_FILE = "resource/throughput/war_and_peace.txt";
+    private static final int PORT = 8000;
+    private static final int NUMBER_OF_THREAD = Integer.getInteger("throughput.threads", Runtime.getRuntime().availableProcessors());
+    private static final ExecutorMode EXECUTOR_MODE = ExecutorMode.valueOf(System.getProperty("throughput.executor", "fixed").toUpperCase());
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+    private static final boolean USE_WORD_INDEX = Boolean.getBoolean("throughput.wordIndex");
+    private static final int PARALLEL_SCAN_THRESHOLD = Integer.getInteger("throughput.parallelThreshold", 1 << 22);
+    private static final boolean USE_NIO_FRONT_END = "nio".equalsIgnoreCase(System.getProperty("throughput.frontEnd"));
+    private static final int NUMBER_OF_EVENT_LOOPS = Integer.getInteger("throughput.eventLoops", 2);
+    private static final boolean USE_MEMORY_MAPPED_CORPUS = Boolean.getBoolean("throughput.mmap");
+    private static final int CACHE_SIZE = Integer.getInteger("throughput.cacheSize", 0);
+    private static final ResponseCache.EvictionPolicy CACHE_POLICY =
+            ResponseCache.EvictionPolicy.valueOf(System.getProperty("throughput.cachePolicy", "tiny_lfu").toUpperCase());
+    private static final int AUTOMATON_CACHE_SIZE = 64;
+    private static final boolean USE_SUFFIX_ARRAY = Boolean.getBoolean("throughput.suffixArray");
+    private static final boolean SUFFIX_ARRAY_OFF_HEAP = Boolean.getBoolean("throughput.suffixArrayOffHeap");
+    private static final boolean MEASURE_ALLOCATION = Boolean.getBoolean("throughput.measureAllocation") && AllocationMeter.isSupported();
+    private static final boolean WATCH_CORPUS = Boolean.getBoolean("throughput.reload");
+    private static final String CORPUS_DIRECTORY = System.getProperty("throughput.corpusDir");
+    private static final AdmissionController.Policy ADMISSION_POLICY =
+            AdmissionController.Policy.valueOf(System.getProperty("throughput.admission", "none").toUpperCase());
+    private static final int QUEUE_CAPACITY = Integer.getInteger("throughput.queueCapacity", 1024);
+    private static final long CODEL_TARGET_MILLIS = Long.getLong("throughput.codel.targetMillis", 5L);
+    private static final long CODEL_INTERVAL_MILLIS = Long.getLong("throughput.codel.intervalMillis", 100L);
+    private static final int CLIENT_CONCURRENCY = Integer.getInteger("throughput.clientConcurrency", 8);
+    private static final boolean COALESCE_REQUESTS = Boolean.getBoolean("throughput.coalesce");
+    private static final SwarSubstringScanner.Mode SCANNER_MODE =
+            SwarSubstringScanner.Mode.valueOf(System.getProperty("throughput.scanner", "index_of").toUpperCase());
 
     public static void main(String[] args) throws IOException {
+        if (CORPUS_DIRECTORY != null) {
+            Path directory = Paths.get(CORPUS_DIRECTORY);
+            startServer(new WordCountHandler(loadShards(directory, null)), directory);
+            return;
+        }
+
+        if (USE_MEMORY_MAPPED_CORPUS) {
+            long startTime = System.currentTimeMillis();
+            MappedCorpus corpus = MappedCorpus.map(Paths.get(INPUT_FILE));
+            long endTime = System.currentTimeMillis();
+
+            System.out.println(String.format("Mapped %d bytes in %d ms", corpus.size(), endTime - startTime));
+            startServer(corpus);
+            return;
+        }
+
         String text = new String(Files.readAllBytes(Paths.get(INPUT_FILE)));
         startServer(text);
     }
 
     public static void startServer(String text) throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(8000), 0);
-        server.createContext("/search", new WordCountHandler(text));
+        startServer(createHandler(text), Paths.get(INPUT_FILE));
+    }
+
+    public static void startServer(MappedCorpus corpus) throws IOException {
+        startServer(new WordCountHandler(corpus), Paths.get(INPUT_FILE));
+    }
 
-        Executor executor = Executors.newFixedThreadPool(NUMBER_OF_THREAD);
-        server.setExecutor(executor);
+    private static void startServer(WordCountHandler handler, Path corpusPath) throws IOException {
+        RunningServer server = start(handler, PORT, NUMBER_OF_THREAD);
+        startReporter(server, handler);
+        if (WATCH_CORPUS) {
+            new CorpusReloader(handler, corpusPath).start();
+        }
+    }
+
+    static WordCountHandler createHandler(String text) {
+        return new WordCountHandler(buildSnapshot(text, null));
+    }
+
+    /**
+     * 텍스트와 설정된 인덱스들로 새 버전의 스냅샷을 만든다.
+     * 이전 버전 뒤에 내용만 덧붙었으면 단어 인덱스는 덧붙은 부분만 토큰화해서 이어 만든다.
+     * 접미사 배열은 새 접미사들이 기존 순서 사이사이에 끼어들어 이어 만들 수 없으므로 다시 만든다.
+     */
+    static CorpusSnapshot buildSnapshot(String text, CorpusSnapshot previous) {
+        long version = previous == null ? 1 : previous.version + 1;
+        WordFrequencyIndex wordIndex = null;
+
+        if (USE_WORD_INDEX && previous != null && previous.wordIndex != null && previous.isAppendedBy(text)) {
+            long startTime = System.currentTimeMillis();
+            wordIndex = previous.wordIndex.extend(text, previous.text.length());
+            long endTime = System.currentTimeMillis();
+
+            System.out.println(String.format("Word index extended by %d appended chars in %d ms (%d distinct words)",
+                    text.length() - previous.text.length(), endTime - startTime, wordIndex.distinctWords()));
+        } else if (USE_WORD_INDEX) {
+            wordIndex = buildWordIndex(text);
+        }
+
+        SuffixArrayIndex suffixArray = USE_SUFFIX_ARRAY ? buildSuffixArray(text) : null;
+        SwarSubstringScanner scanner = suffixArray == null ? SwarSubstringScanner.select(text, SCANNER_MODE) : null;
+        return new CorpusSnapshot(version, text, wordIndex, suffixArray, scanner);
+    }
+
+    /**
+     * 디렉터리의 파일마다 샤드 하나씩을 만든다.
+     * 파일을 읽고 인덱스를 만드는 일은 샤드끼리 독립적이므로 코어 개수만큼 병렬로 처리한다.
+     * previous가 있으면 이름이 같은 이전 샤드를 넘겨서, 뒤에 덧붙기만 한 파일은 인덱스를 이어 만든다.
+     */
+    static CorpusSnapshot loadShards(Path directory, CorpusSnapshot previous) throws IOException {
+        Path[] files;
+        try (Stream<Path> entries = Files.list(directory)) {
+            // 점으로 시작하는 파일은 이름을 바꿔서 올리기 전의 임시 파일로 보고 샤드로 읽지 않는다.
+            files = entries.filter(Files::isRegularFile).filter(entry -> !entry.getFileName().toString().startsWith("."))
+                    .sorted().toArray(Path[]::new);
+        }
+        if (files.length == 0) {
+            throw new IOException("No corpus files in " + directory);
+        }
+
+        String[] names = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            names[i] = files[i].getFileName().toString();
+        }
+
+        long startTime = System.currentTimeMillis();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        CorpusSnapshot[] shards;
+        try {
+            shards = pool.submit(() -> IntStream.range(0, files.length).parallel()
+                    .mapToObj(i -> loadShard(files[i], previous == null ? null : previous.shard(names[i])))
+                    .toArray(CorpusSnapshot[]::new)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + directory, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof UncheckedIOException ? ((UncheckedIOException) cause).getCause() : new IOException(cause);
+        } finally {
+            pool.shutdown();
+        }
+        long endTime = System.currentTimeMillis();
+
+        System.out.println(String.format("Loaded %d shards from %s in %d ms (%d threads)",
+                shards.length, directory, endTime - startTime, parallelism));
+        return new CorpusSnapshot(previous == null ? 1 : previous.version + 1, shards, names);
+    }
+
+    private static CorpusSnapshot loadShard(Path file, CorpusSnapshot previous) {
+        try {
+            if (USE_MEMORY_MAPPED_CORPUS) {
+                return new CorpusSnapshot(previous == null ? 1 : previous.version + 1, MappedCorpus.map(file));
+            }
+            String text = new String(Files.readAllBytes(file));
+            if (previous != null && text.equals(previous.text)) {
+                // 바뀌지 않은 샤드는 인덱스까지 그대로 재사용한다.
+                return previous;
+            }
+            return buildSnapshot(text, previous);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 설정된 프론트 엔드와 Executor 모드로 서버를 띄운다.
+     * LoadGenerator처럼 스레드 개수를 바꿔가며 서버를 다시 띄워야 하는 곳에서 close()로 멈출 수 있다.
+     */
+    static RunningServer start(WordCountHandler handler, int port, int numberOfThreads) throws IOException {
+        ExecutorService executorService = EXECUTOR_MODE.create(numberOfThreads);
+        InstrumentedExecutor executor = new InstrumentedExecutor(executorService);
+        // 거절한 요청이 처리량과 지연 시간에 섞이지 않도록 InstrumentedExecutor 바깥에서 거른다.
+        AdmissionController admission = new AdmissionController(executor, ADMISSION_POLICY, QUEUE_CAPACITY,
+                CODEL_TARGET_MILLIS, CODEL_INTERVAL_MILLIS, CLIENT_CONCURRENCY);
+        MetricsHandler metricsHandler = new MetricsHandler(executor, admission, handler.countTime, handler.coalescer);
+
+        if (USE_NIO_FRONT_END) {
+            NioWordCountServer server = new NioWordCountServer(port, NUMBER_OF_EVENT_LOOPS, handler, metricsHandler, admission);
+            server.start();
+            return new RunningServer(executor, admission, executorService, server::stop);
+        }
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/search", admission.wrap(handler));
+        // 거절된 요청은 dispatcher 스레드에서 바로 실행되므로 /metrics도 감싸서 503만 쓰고 끝나게 한다.
+        server.createContext("/metrics", admission.wrap(metricsHandler));
+        server.setExecutor(admission);
         server.start();
+        return new RunningServer(executor, admission, executorService, () -> server.stop(0));
+    }
+
+    static class RunningServer {
+        final InstrumentedExecutor executor;
+        final AdmissionController admission;
+        private final ExecutorService executorService;
+        private final Runnable stopFrontEnd;
+
+        RunningServer(InstrumentedExecutor executor, AdmissionController admission,
+                      ExecutorService executorService, Runnable stopFrontEnd) {
+            this.executor = executor;
+            this.admission = admission;
+            this.executorService = executorService;
+            this.stopFrontEnd = stopFrontEnd;
+        }
+
+        void close() {
+            stopFrontEnd.run();
+            executorService.shutdownNow();
+        }
     }
 
-    private static class WordCountHandler implements HttpHandler {
+    private static void startReporter(RunningServer server, WordCountHandler handler) {
+        InstrumentedExecutor executor = server.executor;
+        AdmissionController admission = server.admission;
+        ResponseCache cache = handler.cache;
+        Thread reporter = new Thread(() -> {
+            long lastCompleted = 0;
+            long lastLatencyNanos = 0;
+            long lastAllocatedBytes = 0;
+            long lastMeasuredRequests = 0;
+
+            while (true) {
+                try {
+                    Thread.sleep(REPORT_INTERVAL_SECONDS * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long completed = executor.getCompletedTasks();
+                long latencyNanos = executor.getTotalLatencyNanos();
+                long maxLatencyNanos = executor.getAndResetMaxLatencyNanos();
+                long requests = completed - lastCompleted;
+
+                if (requests > 0) {
+                    System.out.println(String.format("[%s x %d] %.1f req/s, avg latency %.2f ms, max latency %.2f ms",
+                            EXECUTOR_MODE, NUMBER_OF_THREAD,
+                            (double) requests / REPORT_INTERVAL_SECONDS,
+                            (latencyNanos - lastLatencyNanos) / 1_000_000.0 / requests,
+                            maxLatencyNanos / 1_000_000.0));
+                }
+                if (admission.getPolicy() != AdmissionController.Policy.NONE) {
+                    System.out.println(String.format("Admission %s: rejected %d, shed %d, client limited %d",
+                            admission.getPolicy(), admission.getRejectedRequests(), admission.getShedRequests(),
+                            admission.getClientLimitedRequests()));
+                }
+                if (requests > 0 && handler.coalescer != null) {
+                    System.out.println(String.format("Coalesced %d waiters onto %d computations",
+                            handler.coalescer.getWaiterCount(), handler.coalescer.getLeaderCount()));
+                }
+                if (requests > 0 && cache != null) {
+                    System.out.println(String.format("Cache hits %d, misses %d, evictions %d",
+                            cache.getHitCount(), cache.getMissCount(), cache.getEvictionCount()));
+                }
+
+                long allocatedBytes = handler.allocatedBytes.sum();
+                long measuredRequests = handler.measuredRequests.sum();
+                if (measuredRequests > lastMeasuredRequests) {
+                    System.out.println(String.format("Handler allocated %.1f bytes/request",
+                            (double) (allocatedBytes - lastAllocatedBytes) / (measuredRequests - lastMeasuredRequests)));
+                }
+                lastAllocatedBytes = allocatedBytes;
+                lastMeasuredRequests = measuredRequests;
+
+                lastCompleted = completed;
+                lastLatencyNanos = latencyNanos;
+            }
+        });
+
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    private static WordFrequencyIndex buildWordIndex(String text) {
+        long startTime = System.currentTimeMillis();
+        WordFrequencyIndex wordIndex = WordFrequencyIndex.build(text);
+        long endTime = System.currentTimeMillis();
+
+        System.out.println(String.format("Word index built in %d ms (%d distinct words, about %d KB)",
+                endTime - startTime, wordIndex.distinctWords(), wordIndex.estimatedMemoryBytes() / 1024));
+        return wordIndex;
+    }
+
+    private static SuffixArrayIndex buildSuffixArray(String text) {
+        long startTime = System.currentTimeMillis();
+        SuffixArrayIndex suffixArray = SuffixArrayIndex.build(text, Runtime.getRuntime().availableProcessors(), SUFFIX_ARRAY_OFF_HEAP);
+        long endTime = System.currentTimeMillis();
+
+        System.out.println(String.format("Suffix array built in %d ms (%d KB%s, longest repeated substring %d chars)",
+                endTime - startTime, suffixArray.memoryBytes() / 1024, suffixArray.isOffHeap() ? ", off-heap" : "",
+                suffixArray.longestRepeatedLength()));
+        return suffixArray;
+    }
+
+    /**
+     * 코퍼스와 인덱스는 CorpusSnapshot 하나에 묶어서 AtomicReference로 들고 있다.
+     * 요청은 처음에 acquire()로 스냅샷을 잡고 끝날 때 release()하며, 중간에 publish()로 교체되어도 잡은 스냅샷으로 끝까지 처리한다.
+     */
+    static class WordCountHandler implements HttpHandler {
+        // long의 최대 자릿수는 19자리, 부호까지 20
+        private static final ThreadLocal<byte[]> RESPONSE_BUFFER = ThreadLocal.withInitial(() -> new byte[20]);
+        private static final String[] ACTIONS = {"word", "substring", "wholeword", "words"};
+        private static final String BREAKDOWN_PARAMETER = "breakdown";
+
+        private final AtomicReference<CorpusSnapshot> corpus = new AtomicReference<>();
+        private final boolean sharded;
+        private volatile ParallelSubstringCounter parallelCounter;
+        private volatile ForkJoinPool shardPool;
+        private ResponseCache cache = CACHE_SIZE > 0 ? new ResponseCache(CACHE_SIZE, CACHE_POLICY) : null;
+        private SingleFlight<SnapshotQuery, byte[]> coalescer = COALESCE_REQUESTS ? new SingleFlight<>() : null;
+        private LongAdder allocatedBytes = new LongAdder();
+        private LongAdder measuredRequests = new LongAdder();
+        private LatencyHistogram countTime = new LatencyHistogram();
+        private Map<String, AhoCorasickAutomaton> automatonCache = Collections.synchronizedMap(
+                new LinkedHashMap<String, AhoCorasickAutomaton>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, AhoCorasickAutomaton> eldest) {
+                        return size() > AUTOMATON_CACHE_SIZE;
+                    }
+                });
+
+        public WordCountHandler(MappedCorpus mappedCorpus) {
+            this(new CorpusSnapshot(1, mappedCorpus));
+        }
+
+        /**
+         * 샤드로 나뉜 스냅샷으로 만들었으면 다시 읽을 때도 샤드로 나뉜 스냅샷만 받는다.
+         */
+        public WordCountHandler(CorpusSnapshot snapshot) {
+            this.sharded = snapshot.shards != null;
+            publish(snapshot);
+        }
+
+        CorpusSnapshot current() {
+            return corpus.get();
+        }
+
+        /**
+         * 새 스냅샷으로 한 번에 바꾸고 이전 스냅샷을 돌려준다.
+         * 응답 캐시는 교체한 뒤에 비운다. 교체 전에 시작한 요청의 put()은 epoch가 달라서 버려진다.
+         */
+        CorpusSnapshot publish(CorpusSnapshot snapshot) {
+            if (parallelCounter == null && snapshot.maxTextLength() >= PARALLEL_SCAN_THRESHOLD) {
+                parallelCounter = new ParallelSubstringCounter(Runtime.getRuntime().availableProcessors());
+            }
+            if (shardPool == null && snapshot.shards != null) {
+                shardPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            }
+
+            CorpusSnapshot previous = corpus.getAndSet(snapshot);
+            if (previous != null && cache != null) {
+                cache.clear();
+            }
+            return previous;
+        }
 
-        private String text;
+        /**
+         * 현재 스냅샷을 잡는다.
+         * 개수를 올린 사이에 교체되었으면 이전 스냅샷의 drain을 기다리는 쪽이 놓칠 수 있으므로 되돌리고 다시 잡는다.
+         */
+        private CorpusSnapshot acquire() {
+            while (true) {
+                CorpusSnapshot snapshot = corpus.get();
+                snapshot.inFlight.increment();
+                if (corpus.get() == snapshot) {
+                    return snapshot;
+                }
+                snapshot.inFlight.decrement();
+            }
+        }
 
-        public WordCountHandler(String text) {
-            this.text = text;
+        private static void release(CorpusSnapshot snapshot) {
+            snapshot.inFlight.decrement();
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            InstrumentedExecutor.countCurrentTask();
+            long allocatedBefore = MEASURE_ALLOCATION ? AllocationMeter.currentThreadAllocatedBytes() : 0;
 
+            // 퍼센트 인코딩이 없으면 URI는 원래 문자열을 그대로 돌려주므로 새로 만들어지는 객체가 없다.
             String query = exchange.getRequestURI().getQuery();
-            String[] keyValue = query.split("=");
-            String action = keyValue[0];
-            String word = keyValue[1];
+            int separator = query == null ? -1 : actionSeparator(query);
 
-            if(!action.equals("word")) {
-                exchange.sendResponseHeaders(400, 0);
-                return;
+            byte[] response;
+            int length;
+            if (separator < 0) {
+                response = null;
+                length = 0;
+            } else if (cache != null || coalescer != null || sharded || isAction(query, separator, "words")) {
+                response = respond(query);
+                length = response == null ? 0 : response.length;
+            } else {
+                long startTime = System.nanoTime();
+                CorpusSnapshot snapshot = acquire();
+                long count;
+                try {
+                    count = count(snapshot, query, separator);
+                } finally {
+                    release(snapshot);
+                }
+                countTime.record(System.nanoTime() - startTime);
+                response = count < 0 ? null : RESPONSE_BUFFER.get();
+                length = count < 0 ? 0 : formatDecimal(count, response);
+            }
+
+            if (MEASURE_ALLOCATION) {
+                allocatedBytes.add(AllocationMeter.currentThreadAllocatedBytes() - allocatedBefore);
+                measuredRequests.increment();
             }
 
-            long count = countWord(word);
+            if (response == null) {
+                // 길이를 0으로 보내면 chunked 응답이 되어 클라이언트가 본문을 계속 기다린다. -1은 본문이 없다는 뜻이다.
+                exchange.sendResponseHeaders(400, -1);
+                exchange.close();
+                return;
+            }
 
-            byte[] response = Long.toString(count).getBytes();
-            exchange.sendResponseHeaders(200, response.length);
+            exchange.sendResponseHeaders(200, length);
             OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(response);
+            outputStream.write(response, 0, length);
             outputStream.close();
         }
 
-        private long countWord(String word) {
-            long count = 0;
-            int index = 0;
+        /**
+         * 응답 본문을 돌려준다. 캐시에 있으면 그대로 재사용하고, 잘못된 쿼리면 null을 돌려준다.
+         * 쿼리 문자열("word=prince") 자체를 캐시 키로 쓰기 때문에 키를 만들려고 문자열을 합치지 않는다.
+         */
+        byte[] respond(String query) {
+            int separator = actionSeparator(query);
+            if (separator < 0) {
+                return null;
+            }
+            if (cache == null) {
+                return coalesce(query, separator);
+            }
+
+            // epoch를 스냅샷보다 먼저 읽어야 교체 전 스냅샷으로 계산한 값이 새 epoch로 들어가지 않는다.
+            long epoch = cache.epoch();
+            byte[] response = cache.get(query);
+            if (response != null) {
+                return response;
+            }
+
+            response = coalesce(query, separator);
+            if (response != null) {
+                cache.put(query, epoch, response);
+            }
+            return response;
+        }
+
+        /**
+         * 같은 스냅샷에서 같은 쿼리가 이미 계산 중이면 새로 세지 않고 그 결과를 기다린다.
+         * 키에 스냅샷 버전을 넣어서, 다시 읽은 뒤에 온 요청이 이전 스냅샷으로 계산 중인 leader에 붙지 않게 한다.
+         */
+        private byte[] coalesce(String query, int separator) {
+            CorpusSnapshot snapshot = acquire();
+            try {
+                if (coalescer == null) {
+                    return compute(snapshot, query, separator);
+                }
+                return coalescer.execute(new SnapshotQuery(snapshot.version, query), () -> compute(snapshot, query, separator));
+            } finally {
+                release(snapshot);
+            }
+        }
+
+        private byte[] compute(CorpusSnapshot snapshot, String query, int separator) {
+            long startTime = System.nanoTime();
+            try {
+                if (snapshot.shards != null) {
+                    return countShards(snapshot, query, separator);
+                }
+
+                long[] counts = countAll(snapshot, query, separator);
+                return counts == null ? null : formatCounts(counts);
+            } finally {
+                countTime.record(System.nanoTime() - startTime);
+            }
+        }
+
+        /**
+         * 모든 샤드에 같은 쿼리를 병렬로 보내고 샤드별 결과를 더한다.
+         * breakdown 파라미터가 true나 1이면 합계 다음 줄부터 "샤드 이름 결과"를 한 줄씩 덧붙인다.
+         */
+        private byte[] countShards(CorpusSnapshot snapshot, String query, int separator) {
+            CorpusSnapshot[] shards = snapshot.shards;
+            long[][] results = shardPool.submit(() -> Arrays.stream(shards).parallel()
+                    .map(shard -> countAll(shard, query, separator))
+                    .toArray(long[][]::new)).join();
+            if (results[0] == null) {
+                return null;
+            }
 
-            while (index >= 0 ) {
-                index = text.indexOf(word, index);
+            long[] merged = new long[results[0].length];
+            for (long[] result : results) {
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i] += result[i];
+                }
+            }
 
-                if( index >= 0 ) {
-                    count++;
-                    index++;
+            StringBuilder builder = new StringBuilder();
+            appendCounts(builder, merged);
+            if (isBreakdown(query)) {
+                for (int i = 0; i < shards.length; i++) {
+                    builder.append('\n').append(snapshot.shardNames[i]).append(' ');
+                    appendCounts(builder, results[i]);
                 }
             }
+            return builder.toString().getBytes();
+        }
+
+        /**
+         * 샤드 하나(또는 나뉘지 않은 코퍼스)에서 쿼리의 결과를 센다. 알 수 없는 action이면 null을 돌려준다.
+         */
+        private long[] countAll(CorpusSnapshot snapshot, String query, int separator) {
+            if (isAction(query, separator, "words")) {
+                return countWords(snapshot, query.substring(separator + 1, valueEnd(query, separator + 1)));
+            }
+
+            long count = count(snapshot, query, separator);
+            return count < 0 ? null : new long[] {count};
+        }
+
+        /**
+         * 쉼표로 구분된 단어들의 부분 문자열 개수를 텍스트 한 번 스캔으로 센다.
+         * 메모리 맵 모드에는 String이 없어서 단어마다 MappedCorpus를 스캔하고,
+         * 접미사 배열이 있으면 단어마다 이진 탐색하는 편이 한 번 스캔하는 것보다 빠르다.
+         */
+        private long[] countWords(CorpusSnapshot snapshot, String commaSeparatedWords) {
+            String[] words = commaSeparatedWords.split(",", -1);
 
-            return count;
+            if (snapshot.mappedCorpus != null || snapshot.suffixArray != null) {
+                long[] counts = new long[words.length];
+                for (int i = 0; i < words.length; i++) {
+                    counts[i] = countWord(snapshot, words[i]);
+                }
+                return counts;
+            }
+
+            AhoCorasickAutomaton automaton = automatonCache.get(commaSeparatedWords);
+            if (automaton == null) {
+                automaton = AhoCorasickAutomaton.build(words);
+                automatonCache.put(commaSeparatedWords, automaton);
+            }
+            return automaton.count(snapshot.text);
+        }
+
+        private static byte[] formatCounts(long[] counts) {
+            StringBuilder builder = new StringBuilder();
+            appendCounts(builder, counts);
+            return builder.toString().getBytes();
+        }
+
+        private static void appendCounts(StringBuilder builder, long[] counts) {
+            for (int i = 0; i < counts.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(counts[i]);
+            }
+        }
+
+        /**
+         * 프론트 엔드(HttpServer, NIO)와 상관없이 같은 규칙으로 개수를 센다.
+         * split()으로 배열과 문자열을 만들지 않고 쿼리 문자열 안에서 바로 action과 단어의 위치를 찾는다.
+         * 알 수 없는 action이거나 찾을 단어가 비어 있으면 -1(400 Bad Request)을 돌려준다.
+         */
+        private long count(CorpusSnapshot snapshot, String query, int separator) {
+            int wordStart = separator + 1;
+            int wordEnd = valueEnd(query, wordStart);
+            if (wordStart >= wordEnd) {
+                return -1;
+            }
+
+            if (isAction(query, separator, "word") || isAction(query, separator, "substring")) {
+                return countWord(snapshot, query.substring(wordStart, wordEnd));
+            } else if (isAction(query, separator, "wholeword")) {
+                return countWholeWord(snapshot, query, wordStart, wordEnd);
+            }
+            return -1;
+        }
+
+        /**
+         * 온전한 단어(토큰)의 개수. 단어 인덱스가 있으면 O(1)로 찾고, 없으면 같은 토큰 규칙으로 텍스트를 스캔한다.
+         * 토큰 경계 문자가 섞인 검색어는 토큰이 될 수 없으므로 0이다.
+         * 메모리 맵 모드는 텍스트를 바이트로만 읽어서 토큰 경계를 알 수 없으므로 -1(400 Bad Request)이다.
+         */
+        private static long countWholeWord(CorpusSnapshot snapshot, String query, int wordStart, int wordEnd) {
+            if (snapshot.text == null) {
+                return -1;
+            }
+            if (snapshot.wordIndex != null) {
+                return WordFrequencyIndex.isWord(query, wordStart, wordEnd) ? snapshot.wordIndex.count(query, wordStart, wordEnd) : 0;
+            }
+            return WordFrequencyIndex.countToken(snapshot.text, query.substring(wordStart, wordEnd));
+        }
+
+        /**
+         * 쿼리는 '&'로 나뉜 "이름=값" 파라미터들이다. action(word, substring, wholeword, words) 파라미터의 '=' 위치를 돌려주고, 없으면 -1이다.
+         * 파라미터 순서는 상관없고, 다른 파라미터(breakdown 등)는 건너뛴다.
+         */
+        private static int actionSeparator(String query) {
+            for (String action : ACTIONS) {
+                int separator = parameterSeparator(query, action);
+                if (separator >= 0) {
+                    return separator;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 이름이 name인 첫 파라미터의 '=' 위치. 파라미터마다 시작에서 이름을 비교할 뿐 문자열을 만들지 않는다.
+         */
+        private static int parameterSeparator(String query, String name) {
+            int start = 0;
+            while (start < query.length()) {
+                int end = valueEnd(query, start);
+                if (end - start > name.length() && query.startsWith(name, start) && query.charAt(start + name.length()) == '=') {
+                    return start + name.length();
+                }
+                start = end + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * 값은 다음 '&'(다음 파라미터)나 쿼리 끝까지다.
+         */
+        private static int valueEnd(String query, int from) {
+            int end = query.indexOf('&', from);
+            return end < 0 ? query.length() : end;
+        }
+
+        private static boolean isAction(String query, int separator, String action) {
+            int start = separator - action.length();
+            return start >= 0 && (start == 0 || query.charAt(start - 1) == '&') && query.startsWith(action, start);
+        }
+
+        private static boolean isBreakdown(String query) {
+            int separator = parameterSeparator(query, BREAKDOWN_PARAMETER);
+            if (separator < 0) {
+                return false;
+            }
+
+            int valueStart = separator + 1;
+            int valueLength = valueEnd(query, valueStart) - valueStart;
+            return valueLength == 4 && query.startsWith("true", valueStart)
+                    || valueLength == 1 && query.charAt(valueStart) == '1';
+        }
+
+        /**
+         * Long.toString(count).getBytes() 대신 스레드마다 재사용하는 버퍼에 숫자를 쓰고 길이를 돌려준다.
+         */
+        private static int formatDecimal(long value, byte[] buffer) {
+            int length = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                length++;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return length;
+        }
+
+        private long countWord(CorpusSnapshot snapshot, String word) {
+            if (snapshot.mappedCorpus != null) {
+                return snapshot.mappedCorpus.count(word);
+            }
+            if (snapshot.suffixArray != null) {
+                return snapshot.suffixArray.count(word);
+            }
+
+            String text = snapshot.text;
+            if (parallelCounter != null && text.length() >= PARALLEL_SCAN_THRESHOLD && !word.isEmpty()) {
+                return parallelCounter.count(text, word);
+            }
+            if (snapshot.scanner != null) {
+                return snapshot.scanner.count(word);
+            }
+
+            return SwarSubstringScanner.countWithIndexOf(text, word);
+        }
+
+        /**
+         * SingleFlight 키. 같은 쿼리라도 스냅샷 버전이 다르면 다른 계산이다.
+         */
+        private static final class SnapshotQuery {
+            private final long version;
+            private final String query;
+
+            SnapshotQuery(long version, String query) {
+                this.version = version;
+                this.query = query;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                if (!(other instanceof SnapshotQuery)) {
+                    return false;
+                }
+                SnapshotQuery that = (SnapshotQuery) other;
+                return version == that.version && query.equals(that.query);
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * Long.hashCode(version) + query.hashCode();
+            }
         }
     }
 }
@@ -0,0 +1,271 @@
+package thread.throughput;
+
+import java.util.Arrays;
+
+/**
+ * 단어 빈도 인덱스
+ * 서버를 시작할 때 텍스트를 한 번만 토큰화해서 단어별 개수를 미리 세어 둔다.
+ * 요청마다 전체 텍스트를 스캔하는 O(텍스트 크기) 작업이 해시 조회 한 번, 즉 O(1)로 바뀐다.
+ *
+ * 토큰은 연속된 문자(letter)와 숫자(digit)로 정의하고 대소문자를 구분한다.
+ * 따라서 인덱스는 "온전한 단어"의 개수만 알려줄 수 있고, 부분 문자열 개수는 여전히 스캔해야 한다.
+ *
+ * HashMap<String, Integer>는 엔트리마다 Node 객체와 Integer 박싱이 생기기 때문에
+ * String[]과 int[] 두 배열로 된 open addressing(linear probing) 테이블을 사용해서 메모리를 줄였다.
+ */
+public class WordFrequencyIndex {
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private String[] keys;
+    private int[] counts;
+    private int size;
+    private int occupiedSlots;
+
+    private WordFrequencyIndex() {
+        keys = new String[INITIAL_CAPACITY];
+        counts = new int[INITIAL_CAPACITY];
+    }
+
+    private WordFrequencyIndex(WordFrequencyIndex source) {
+        keys = source.keys.clone();
+        counts = source.counts.clone();
+        size = source.size;
+        occupiedSlots = source.occupiedSlots;
+    }
+
+    public static WordFrequencyIndex build(String text) {
+        WordFrequencyIndex index = new WordFrequencyIndex();
+        index.addTokens(text, 0);
+        return index;
+    }
+
+    /**
+     * 이 인덱스를 만든 텍스트(앞의 previousLength 글자) 뒤에 내용이 덧붙은 text의 인덱스를 만든다.
+     * 덧붙은 부분만 토큰화하므로 전체를 다시 만드는 것보다 훨씬 빠르다.
+     * 다른 스레드가 이 인덱스를 읽고 있을 수 있으므로 복사본을 고쳐서 돌려준다.
+     *
+     * 기존 텍스트의 마지막 토큰은 덧붙은 내용과 이어져서 더 긴 토큰이 될 수 있다.
+     * 그래서 그 토큰을 한 번 빼고 토큰의 시작 위치부터 다시 센다.
+     */
+    public WordFrequencyIndex extend(String text, int previousLength) {
+        WordFrequencyIndex index = new WordFrequencyIndex(this);
+
+        int start = previousLength;
+        while (start > 0 && isWordChar(text.charAt(start - 1))) {
+            start--;
+        }
+        if (start < previousLength) {
+            index.decrement(text, start, previousLength);
+        }
+
+        index.addTokens(text, start);
+        return index;
+    }
+
+    private void addTokens(String text, int from) {
+        int length = text.length();
+        int position = from;
+
+        while (position < length) {
+            while (position < length && !isWordChar(text.charAt(position))) {
+                position++;
+            }
+
+            int start = position;
+            while (position < length && isWordChar(text.charAt(position))) {
+                position++;
+            }
+
+            if (position > start) {
+                increment(text, start, position);
+            }
+        }
+    }
+
+    /**
+     * 인덱스로 답할 수 있는 검색어인지 확인한다.
+     * 토큰 경계 문자가 섞여 있으면 온전한 단어가 아니므로 스캔으로 처리해야 한다.
+     */
+    public static boolean isWord(String word) {
+        return isWord(word, 0, word.length());
+    }
+
+    /**
+     * text의 [start, end) 구간을 검색어로 본다. 구간을 잘라낸 String을 만들지 않는다.
+     */
+    public static boolean isWord(String text, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+
+        for (int i = start; i < end; i++) {
+            if (!isWordChar(text.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public int count(String word) {
+        return count(word, 0, word.length());
+    }
+
+    /**
+     * 인덱스 없이 text를 스캔해서 word가 온전한 토큰으로 나온 횟수를 센다.
+     * 앞뒤가 토큰 경계인 일치만 세므로 build(text).count(word)와 같은 값이다.
+     */
+    public static long countToken(String text, String word) {
+        if (!isWord(word)) {
+            return 0;
+        }
+
+        long count = 0;
+        for (int index = text.indexOf(word); index >= 0; index = text.indexOf(word, index + 1)) {
+            int end = index + word.length();
+            if ((index == 0 || !isWordChar(text.charAt(index - 1)))
+                    && (end == text.length() || !isWordChar(text.charAt(end)))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int count(String text, int start, int end) {
+        int mask = keys.length - 1;
+        int slot = hash(text, start, end) & mask;
+
+        while (keys[slot] != null) {
+            String key = keys[slot];
+            if (key.length() == end - start && key.regionMatches(0, text, start, end - start)) {
+                return counts[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return 0;
+    }
+
+    public int distinctWords() {
+        return size;
+    }
+
+    /**
+     * 개수가 많은 순서로 최대 limit개의 단어를 돌려준다.
+     */
+    public String[] mostFrequentWords(int limit) {
+        long[] slots = new long[size];
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null && counts[slot] > 0) {
+                // 개수를 상위 32비트에 두고 정렬하면 슬롯 번호가 개수 순서대로 나온다.
+                slots[n++] = (long) counts[slot] << 32 | slot;
+            }
+        }
+        Arrays.sort(slots);
+
+        String[] words = new String[Math.min(limit, n)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = keys[(int) slots[n - 1 - i]];
+        }
+        return words;
+    }
+
+    /**
+     * 테이블이 차지하는 대략적인 힙 메모리(byte)
+     * 배열 헤더 16byte, 참조 4byte(compressed oops), String 객체 24byte + char[] 헤더 16byte 를 기준으로 계산한다.
+     */
+    public long estimatedMemoryBytes() {
+        long bytes = 16L + 4L * keys.length + 16L + 4L * counts.length;
+
+        for (String key : keys) {
+            if (key != null) {
+                bytes += 24 + 16 + 2L * key.length();
+            }
+        }
+
+        return bytes;
+    }
+
+    private void increment(String text, int start, int end) {
+        int mask = keys.length - 1;
+        int slot = hash(text, start, end) & mask;
+
+        while (keys[slot] != null) {
+            String key = keys[slot];
+            if (key.length() == end - start && key.regionMatches(0, text, start, end - start)) {
+                if (counts[slot]++ == 0) {
+                    size++;
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // 새로운 단어일 때만 String을 만든다.
+        keys[slot] = text.substring(start, end);
+        counts[slot] = 1;
+        size++;
+        occupiedSlots++;
+
+        if (occupiedSlots * 3 > keys.length * 2) {
+            resize();
+        }
+    }
+
+    /**
+     * 개수가 0이 되어도 linear probing 체인이 끊기지 않도록 키는 테이블에 남겨둔다.
+     */
+    private void decrement(String text, int start, int end) {
+        int mask = keys.length - 1;
+        int slot = hash(text, start, end) & mask;
+
+        while (keys[slot] != null) {
+            String key = keys[slot];
+            if (key.length() == end - start && key.regionMatches(0, text, start, end - start)) {
+                if (--counts[slot] == 0) {
+                    size--;
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void resize() {
+        String[] oldKeys = keys;
+        int[] oldCounts = counts;
+
+        keys = new String[oldKeys.length * 2];
+        counts = new int[oldCounts.length * 2];
+        int mask = keys.length - 1;
+        occupiedSlots = size;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            String key = oldKeys[i];
+            if (key == null || oldCounts[i] == 0) {
+                continue;
+            }
+
+            int slot = hash(key, 0, key.length()) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            counts[slot] = oldCounts[i];
+        }
+    }
+
+    private static int hash(String text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + text.charAt(i);
+        }
+        // String.hashCode()와 같은 값을 만든 뒤 상위 비트를 섞어서 linear probing의 군집을 줄인다.
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+}